@@ -18,13 +18,24 @@ android {
         vectorDrawables {
             useSupportLibrary = true
         }
+
+        // Backend endpoints; pass e.g. -Psmartrent.apiUrl=... -Psmartrent.socketUrl=... to build against a stand-in
+        val apiUrl = project.findProperty("smartrent.apiUrl") as String? ?: "https://control.smartrent.com/api/v2/"
+        val socketUrl = project.findProperty("smartrent.socketUrl") as String? ?: "wss://control.smartrent.com/socket/websocket"
+        buildConfigField("String", "SMARTRENT_API_URL", "\"$apiUrl\"")
+        buildConfigField("String", "SMARTRENT_SOCKET_URL", "\"$socketUrl\"")
     }
 
     buildTypes {
+        debug {
+            buildConfigField("int", "LOG_LEVEL", "android.util.Log.DEBUG")
+        }
         release {
             isMinifyEnabled = false
             proguardFiles(getDefaultProguardFile("proguard-android-optimize.txt"), "proguard-rules.pro")
             signingConfig = signingConfigs.getByName("debug")
+            // Per-frame debug logging is compiled out, see AppLog
+            buildConfigField("int", "LOG_LEVEL", "android.util.Log.INFO")
         }
     }
     compileOptions {
@@ -36,6 +47,7 @@ android {
     }
     buildFeatures {
         compose = true
+        buildConfig = true
     }
     composeOptions {
         kotlinCompilerExtensionVersion = "1.4.3"
@@ -63,6 +75,7 @@ dependencies {
     testImplementation("junit:junit:4.13.2")
     androidTestImplementation("androidx.test.ext:junit:1.1.5")
     androidTestImplementation("androidx.test.espresso:espresso-core:3.5.1")
+    androidTestImplementation("com.squareup.okhttp3:mockwebserver:4.9.2")
     androidTestImplementation(platform("androidx.compose:compose-bom:2023.03.00"))
     androidTestImplementation("androidx.compose.ui:ui-test-junit4")
     debugImplementation("androidx.compose.ui:ui-tooling")
@@ -0,0 +1,74 @@
+package com.hpp3.smartrentwidget;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Commands going through {@link SmartRentClient} and its {@link OfflineCommandQueue} to the
+ * {@link SmartRentSimulator}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CommandDeliveryTest {
+    private static final long WAIT_MS = 10_000;
+    private static final int LOCK = SmartRentSimulator.deviceId(1, 1);
+
+    private SmartRentSimulator simulator;
+    private SmartRentClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        simulator = new SmartRentSimulator(1, 2);
+        simulator.setLatency(100, 0);
+        client = simulator.newClient(context);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    private void send(String value, CountDownLatch confirmed) {
+        client.sendCommandAsync(LOCK, "locked", value, confirmed::countDown, () -> {
+        });
+    }
+
+    @Test
+    public void mashedTapsReachTheBackendOnce() throws Exception {
+        CountDownLatch confirmed = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            send("false", confirmed);
+        }
+        assertTrue(confirmed.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, simulator.getCommands());
+    }
+
+    @Test
+    public void refusedCommandIsRetriedUntilConfirmed() throws Exception {
+        CountDownLatch connected = new CountDownLatch(1);
+        send("true", connected);
+        assertTrue(connected.await(WAIT_MS, TimeUnit.MILLISECONDS));
+
+        simulator.setErrorRatePct(100);
+        CountDownLatch confirmed = new CountDownLatch(1);
+        send("false", confirmed);
+        assertFalse(confirmed.await(1_500, TimeUnit.MILLISECONDS));
+        simulator.setErrorRatePct(0);
+        assertTrue(confirmed.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(simulator.getFailedCommands() >= 1);
+    }
+}
@@ -0,0 +1,115 @@
+package com.hpp3.smartrentwidget;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Listing devices from the {@link SmartRentSimulator}, whose hubs each take a while to answer,
+ * one hub at a time and with the hubs fetched side by side, and with hubs answering out of
+ * order, failing or never answering.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DeviceListTest {
+    private static final String TAG = "DeviceListTest";
+    private static final int HUBS = 8;
+    private static final int LOCKS_PER_HUB = 3;
+    private static final long HUB_LATENCY_MS = 300;
+    // Past the client's 15s read timeout, well within the device list's 30s budget
+    private static final long STALLED_HUB_LATENCY_MS = 20_000;
+
+    private SmartRentSimulator simulator;
+    private SmartRentClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        simulator = new SmartRentSimulator(HUBS, LOCKS_PER_HUB);
+        client = simulator.newClient(context);
+        // Logs in, so that only the listing itself is timed below
+        client.getDevices(SmartRentLock.TYPE_ENTRY_CONTROL);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    // The device ids of every hub but missingHub, in hub order.
+    private static List<Integer> expectedDeviceIds(int missingHub) {
+        List<Integer> deviceIds = new ArrayList<>();
+        for (int hub = 1; hub <= HUBS; hub++) {
+            for (int device = 1; device <= LOCKS_PER_HUB && hub != missingHub; device++) {
+                deviceIds.add(SmartRentSimulator.deviceId(hub, device));
+            }
+        }
+        return deviceIds;
+    }
+
+    private static List<Integer> deviceIds(List<SmartRentLock> devices) {
+        List<Integer> deviceIds = new ArrayList<>();
+        for (SmartRentLock device : devices) {
+            deviceIds.add(device.getDeviceId());
+        }
+        return deviceIds;
+    }
+
+    @Test
+    public void hubsFetchedSideBySideAreFaster() throws Exception {
+        simulator.setLatency(HUB_LATENCY_MS, 0);
+        long start = SystemClock.elapsedRealtime();
+        List<SmartRentLock> oneAtATime = client.getDevices(SmartRentLock.TYPE_ENTRY_CONTROL, 1);
+        long sequentialMs = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        List<SmartRentLock> sideBySide = client.getDevices(SmartRentLock.TYPE_ENTRY_CONTROL, 4);
+        long concurrentMs = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "hubsFetchedSideBySideAreFaster: " + HUBS + " hubs one at a time in " + sequentialMs
+                + "ms, four at a time in " + concurrentMs + "ms");
+        assertEquals(HUBS * LOCKS_PER_HUB, oneAtATime.size());
+        assertEquals(HUBS * LOCKS_PER_HUB, sideBySide.size());
+        assertTrue(sequentialMs >= HUBS * HUB_LATENCY_MS);
+        // Two rounds of four hubs plus the hub list itself, against nine round trips one at a time
+        assertTrue("Side by side took " + concurrentMs + "ms against " + sequentialMs + "ms",
+                concurrentMs * 2 < sequentialMs);
+    }
+
+    @Test
+    public void devicesKeepHubOrderWhateverOrderHubsAnswerIn() throws Exception {
+        // The last hub answers first, the first hub last
+        for (int hub = 1; hub <= HUBS; hub++) {
+            simulator.setHubLatency(hub, (HUBS - hub + 1) * 50L);
+        }
+        List<SmartRentLock> devices = client.getDevices(SmartRentLock.TYPE_ENTRY_CONTROL, HUBS);
+        assertEquals(expectedDeviceIds(0), deviceIds(devices));
+    }
+
+    @Test
+    public void failingHubLeavesTheOthers() throws Exception {
+        simulator.setHubErrorCode(3, 500);
+        List<SmartRentLock> devices = client.getDevices(SmartRentLock.TYPE_ENTRY_CONTROL, 4);
+        assertEquals(expectedDeviceIds(3), deviceIds(devices));
+    }
+
+    @Test
+    public void hubTimingOutLeavesTheOthers() throws Exception {
+        simulator.setHubLatency(5, STALLED_HUB_LATENCY_MS);
+        List<SmartRentLock> devices = client.getDevices(SmartRentLock.TYPE_ENTRY_CONTROL, 4);
+        assertEquals(expectedDeviceIds(5), deviceIds(devices));
+    }
+}
@@ -0,0 +1,35 @@
+package com.hpp3.smartrentwidget;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link NetworkState} that tests switch on and off by hand.
+ */
+final class FakeNetworkState implements NetworkState {
+    private volatile boolean online;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    FakeNetworkState(boolean online) {
+        this.online = online;
+    }
+
+    void setOnline(boolean online) {
+        boolean cameBack = online && !this.online;
+        this.online = online;
+        if (cameBack) {
+            for (Listener listener : listeners) {
+                listener.onOnline();
+            }
+        }
+    }
+
+    @Override
+    public boolean isOnline() {
+        return online;
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+}
@@ -0,0 +1,195 @@
+package com.hpp3.smartrentwidget;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link OfflineCommandQueue} against a {@link FakeNetworkState} and a sender the test answers
+ * for, so going offline, failing and coming back are under the test's control.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OfflineCommandQueueTest {
+    private static final long WAIT_MS = 5_000;
+
+    private static final class Sent {
+        final int deviceId;
+        final String value;
+        final Runnable success;
+        final Runnable failure;
+
+        Sent(int deviceId, String value, Runnable success, Runnable failure) {
+            this.deviceId = deviceId;
+            this.value = value;
+            this.success = success;
+            this.failure = failure;
+        }
+    }
+
+    private final LinkedBlockingQueue<Sent> sent = new LinkedBlockingQueue<>();
+    private final CommandCoalescer.Sender sender = (deviceId, attributeName, value, trace, deadline, success, failure) ->
+            sent.add(new Sent(deviceId, value, success, failure));
+    private ScheduledExecutorService timers;
+    private ExecutorService journalWriter;
+    private File journal;
+    private FakeNetworkState network;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        journal = new File(context.getCacheDir(), "offline_command_queue_test.bin");
+        journal.delete();
+        timers = Executors.newSingleThreadScheduledExecutor();
+        journalWriter = Executors.newSingleThreadExecutor();
+        network = new FakeNetworkState(true);
+    }
+
+    @After
+    public void tearDown() {
+        timers.shutdownNow();
+        journalWriter.shutdownNow();
+        journal.delete();
+    }
+
+    private OfflineCommandQueue newQueue() {
+        return new OfflineCommandQueue(journal, network, timers, Runnable::run, journalWriter, sender);
+    }
+
+    private static Deadline minutes(long minutes) {
+        return Deadline.after(TimeUnit.MINUTES.toMillis(minutes));
+    }
+
+    @Test
+    public void offlineCommandWaitsForTheNetwork() throws Exception {
+        network.setOnline(false);
+        OfflineCommandQueue queue = newQueue();
+        CountDownLatch confirmed = new CountDownLatch(1);
+        queue.submit(1, "locked", "false", minutes(1), null, confirmed::countDown, () -> {
+        });
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+
+        network.setOnline(true);
+        Sent command = sent.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(command);
+        command.success.run();
+        assertTrue(confirmed.await(WAIT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void mashedTapsAreSentOnce() throws Exception {
+        network.setOnline(false);
+        OfflineCommandQueue queue = newQueue();
+        CountDownLatch confirmed = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            queue.submit(1, "locked", "false", minutes(1), null, confirmed::countDown, () -> {
+            });
+        }
+        network.setOnline(true);
+        Sent command = sent.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(command);
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+        command.success.run();
+        assertTrue(confirmed.await(WAIT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void newerValueSupersedesThePendingOne() throws Exception {
+        network.setOnline(false);
+        OfflineCommandQueue queue = newQueue();
+        CountDownLatch confirmed = new CountDownLatch(2);
+        queue.submit(1, "locked", "false", minutes(1), null, confirmed::countDown, () -> {
+        });
+        queue.submit(1, "locked", "true", minutes(1), null, confirmed::countDown, () -> {
+        });
+        network.setOnline(true);
+        Sent command = sent.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(command);
+        assertEquals("true", command.value);
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+        command.success.run();
+        assertTrue(confirmed.await(WAIT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void failedSendIsRetried() throws Exception {
+        OfflineCommandQueue queue = newQueue();
+        CountDownLatch confirmed = new CountDownLatch(1);
+        queue.submit(1, "locked", "false", minutes(1), null, confirmed::countDown, () -> {
+        });
+        Sent first = sent.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(first);
+        first.failure.run();
+        Sent retry = sent.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(retry);
+        retry.success.run();
+        assertTrue(confirmed.await(WAIT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void expiredCommandIsNeverSent() throws Exception {
+        network.setOnline(false);
+        OfflineCommandQueue queue = newQueue();
+        CountDownLatch failed = new CountDownLatch(1);
+        queue.submit(1, "locked", "false", Deadline.after(200), null, () -> {
+        }, failed::countDown);
+        assertTrue(failed.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        network.setOnline(true);
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void unfinishedCommandsAreReplayedByTheNextProcess() throws Exception {
+        network.setOnline(false);
+        // The previous process never gets back online
+        ExecutorService previousJournalWriter = Executors.newSingleThreadExecutor();
+        OfflineCommandQueue previous = new OfflineCommandQueue(journal, new FakeNetworkState(false), timers,
+                Runnable::run, previousJournalWriter, sender);
+        previous.submit(1, "locked", "false", minutes(1), null, () -> {
+        }, () -> {
+        });
+        previous.submit(1, "locked", "true", minutes(1), null, () -> {
+        }, () -> {
+        });
+        previous.submit(2, "locked", "false", minutes(1), null, () -> {
+        }, () -> {
+        });
+
+        // The next process starts with the journal the previous one left behind, once it is written
+        previousJournalWriter.shutdown();
+        assertTrue(previousJournalWriter.awaitTermination(WAIT_MS, TimeUnit.MILLISECONDS));
+        OfflineCommandQueue next = newQueue();
+        next.replay();
+        network.setOnline(true);
+        AtomicInteger lockOne = new AtomicInteger();
+        for (int i = 0; i < 2; i++) {
+            Sent command = sent.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull(command);
+            if (command.deviceId == 1) {
+                assertEquals("true", command.value);
+                lockOne.incrementAndGet();
+            }
+        }
+        assertEquals(1, lockOne.get());
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+    }
+}
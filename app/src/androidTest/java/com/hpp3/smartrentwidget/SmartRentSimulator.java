@@ -0,0 +1,286 @@
+package com.hpp3.smartrentwidget;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * A stand-in for the SmartRent backend on a local {@link MockWebServer}: the /sessions, /tokens,
+ * /hubs and /hubs/{id}/devices endpoints plus the Phoenix socket, each answering after a
+ * configurable latency with jitter and failing at a configurable rate.
+ * <p>
+ * Hub {@code h} (counting from 1) holds devices {@code h * 1000 + 1} onwards, all locks. Commands
+ * on the socket are confirmed and followed by an {@code attribute_state} push, like the real
+ * backend does.
+ */
+final class SmartRentSimulator implements Closeable {
+    private static final String API_PATH = "/api/v2/";
+    private static final String SOCKET_PATH = "/socket/websocket";
+    // Kept apart from the app's own, so running the tests leaves the user's login and commands alone
+    private static final String CREDENTIALS_NAME = "simulator_encrypted_prefs";
+    private static final String COMMAND_JOURNAL_FILE_NAME = "simulator_command_journal.bin";
+
+    private final MockWebServer server = new MockWebServer();
+    private final ScheduledExecutorService replies = Executors.newScheduledThreadPool(4);
+    private final Random random = new Random();
+    private final int hubCount;
+    private final int devicesPerHub;
+    private volatile long latencyMs;
+    private volatile long jitterMs;
+    private volatile int errorRatePct;
+    // Hub -> the latency, or the error code, its device list is answered with instead
+    private final Map<Integer, Long> hubLatencyMs = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> hubErrorCodes = new ConcurrentHashMap<>();
+    private final AtomicInteger logins = new AtomicInteger();
+    private final AtomicInteger deviceListRequests = new AtomicInteger();
+    private final AtomicInteger commands = new AtomicInteger();
+    private final AtomicInteger failedCommands = new AtomicInteger();
+
+    SmartRentSimulator(int hubCount, int devicesPerHub) throws IOException {
+        this.hubCount = hubCount;
+        this.devicesPerHub = devicesPerHub;
+        server.setDispatcher(new Dispatcher() {
+            @NonNull
+            @Override
+            public MockResponse dispatch(@NonNull RecordedRequest request) {
+                return respond(request);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Every response and reply is held back by {@code latencyMs}, give or take {@code jitterMs}.
+     */
+    void setLatency(long latencyMs, long jitterMs) {
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+    }
+
+    /**
+     * Percentage of requests answered with a 503, and of commands refused, from now on.
+     */
+    void setErrorRatePct(int errorRatePct) {
+        this.errorRatePct = errorRatePct;
+    }
+
+    /**
+     * Hub {@code hub}'s device list is answered after {@code latencyMs}, without jitter, rather
+     * than after the latency every other response gets.
+     */
+    void setHubLatency(int hub, long latencyMs) {
+        hubLatencyMs.put(hub, latencyMs);
+    }
+
+    /**
+     * Hub {@code hub}'s device list is answered with HTTP {@code code} from now on.
+     */
+    void setHubErrorCode(int hub, int code) {
+        hubErrorCodes.put(hub, code);
+    }
+
+    String apiUrl() {
+        return server.url(API_PATH).toString();
+    }
+
+    String socketUrl() {
+        return server.url(SOCKET_PATH).toString().replaceFirst("^http", "ws");
+    }
+
+    /**
+     * A client for this simulator, logged out and with no commands journaled by earlier runs. Its
+     * credentials and journal are the simulator's own, never the app's.
+     */
+    SmartRentClient newClient(Context context) {
+        File journal = new File(context.getCacheDir(), COMMAND_JOURNAL_FILE_NAME);
+        if (journal.exists() && !journal.delete()) {
+            throw new IllegalStateException("Could not delete " + journal);
+        }
+        CredentialManager credentials = new CredentialManager(context.getApplicationContext(), CREDENTIALS_NAME);
+        credentials.storeCredentials("simulator@example.com", "simulator");
+        credentials.clearToken();
+        return new SmartRentClient(context, apiUrl(), socketUrl(), credentials, journal);
+    }
+
+    static int deviceId(int hub, int device) {
+        return hub * 1000 + device;
+    }
+
+    int getLogins() {
+        return logins.get();
+    }
+
+    int getDeviceListRequests() {
+        return deviceListRequests.get();
+    }
+
+    int getCommands() {
+        return commands.get();
+    }
+
+    int getFailedCommands() {
+        return failedCommands.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        replies.shutdownNow();
+        server.shutdown();
+    }
+
+    private MockResponse respond(RecordedRequest request) {
+        String path = request.getPath() == null ? "" : request.getPath();
+        if (path.startsWith(SOCKET_PATH)) {
+            return new MockResponse().withWebSocketUpgrade(new Channel());
+        }
+        if (failsNow()) {
+            return delayed(new MockResponse().setResponseCode(503));
+        }
+        try {
+            if (path.equals(API_PATH + "sessions") || path.equals(API_PATH + "tokens")) {
+                int n = logins.incrementAndGet();
+                JSONObject session = new JSONObject()
+                        .put("access_token", "token-" + n)
+                        .put("refresh_token", "refresh-" + n)
+                        .put("expires", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + 3600);
+                return delayed(new MockResponse().setBody(session.toString()));
+            }
+            if (path.equals(API_PATH + "hubs")) {
+                JSONArray hubs = new JSONArray();
+                for (int hub = 1; hub <= hubCount; hub++) {
+                    hubs.put(new JSONObject().put("id", hub));
+                }
+                return delayed(new MockResponse().setBody(hubs.toString()));
+            }
+            if (path.startsWith(API_PATH + "hubs/") && path.endsWith("/devices")) {
+                deviceListRequests.incrementAndGet();
+                int hub = Integer.parseInt(path.substring((API_PATH + "hubs/").length(), path.length() - "/devices".length()));
+                Integer errorCode = hubErrorCodes.get(hub);
+                if (errorCode != null) {
+                    return delayed(new MockResponse().setResponseCode(errorCode));
+                }
+                JSONArray devices = new JSONArray();
+                for (int device = 1; device <= devicesPerHub; device++) {
+                    devices.put(new JSONObject()
+                            .put("id", deviceId(hub, device))
+                            .put("name", "Lock " + hub + "-" + device)
+                            .put("type", SmartRentLock.TYPE_ENTRY_CONTROL)
+                            .put("attributes", new JSONArray().put(new JSONObject().put("name", "locked").put("state", "true"))));
+                }
+                MockResponse response = new MockResponse().setBody(devices.toString());
+                Long latency = hubLatencyMs.get(hub);
+                return latency == null ? delayed(response) : response.setHeadersDelay(latency, TimeUnit.MILLISECONDS);
+            }
+        } catch (JSONException | NumberFormatException e) {
+            return new MockResponse().setResponseCode(500).setBody(e.toString());
+        }
+        return new MockResponse().setResponseCode(404);
+    }
+
+    private MockResponse delayed(MockResponse response) {
+        return response.setHeadersDelay(nextLatencyMs(), TimeUnit.MILLISECONDS);
+    }
+
+    private boolean failsNow() {
+        int rate = errorRatePct;
+        synchronized (random) {
+            return rate > 0 && random.nextInt(100) < rate;
+        }
+    }
+
+    private long nextLatencyMs() {
+        long jitter = jitterMs;
+        synchronized (random) {
+            return Math.max(0, latencyMs + (jitter > 0 ? (long) ((random.nextDouble() * 2 - 1) * jitter) : 0));
+        }
+    }
+
+    // One socket connection, answering Phoenix v2 frames.
+    private final class Channel extends WebSocketListener {
+
+        @Override
+        public void onMessage(@NonNull WebSocket webSocket, @NonNull String text) {
+            PhoenixFrame frame = new PhoenixFrame();
+            if (!frame.decode(text)) {
+                return;
+            }
+            String event = frame.event;
+            if (PhoenixFrame.EVENT_HEARTBEAT.equals(event)) {
+                webSocket.send(reply(frame, "ok", "{}"));
+            } else if (PhoenixFrame.EVENT_JOIN.equals(event)) {
+                later(() -> webSocket.send(reply(frame, "ok", "{}")));
+            } else if (PhoenixFrame.EVENT_UPDATE_ATTRIBUTES.equals(event)) {
+                commands.incrementAndGet();
+                boolean fails = failsNow();
+                later(() -> {
+                    if (fails) {
+                        failedCommands.incrementAndGet();
+                        webSocket.send(reply(frame, "error", "{\"reason\":\"device_unavailable\"}"));
+                        return;
+                    }
+                    webSocket.send(reply(frame, "ok", "{}"));
+                    pushState(webSocket, frame);
+                });
+            }
+        }
+
+        @Override
+        public void onClosing(@NonNull WebSocket webSocket, int code, @NonNull String reason) {
+            webSocket.close(1000, null);
+        }
+
+        @Override
+        public void onFailure(@NonNull WebSocket webSocket, @NonNull Throwable t, Response response) {
+            // The client went away, nothing to answer anymore
+        }
+
+        private void later(Runnable reply) {
+            try {
+                replies.schedule(reply, nextLatencyMs(), TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                // Shutting down
+            }
+        }
+
+        private String reply(PhoenixFrame frame, String status, String response) {
+            return PhoenixFrame.encode(frame.joinRef, frame.ref, frame.topic, PhoenixFrame.EVENT_REPLY,
+                    "{\"status\":\"" + status + "\",\"response\":" + response + "}");
+        }
+
+        private void pushState(WebSocket webSocket, PhoenixFrame frame) {
+            try {
+                JSONObject attribute = new JSONObject(frame.payload()).getJSONArray("attributes").getJSONObject(0);
+                JSONObject state = new JSONObject()
+                        .put("name", attribute.getString("name"))
+                        .put("state", attribute.getString("value"))
+                        .put("last_read_state", attribute.getString("value"));
+                webSocket.send(PhoenixFrame.encode(null, null, frame.topic, PhoenixFrame.EVENT_ATTRIBUTE_STATE,
+                        state.toString()));
+            } catch (JSONException e) {
+                // Not a command we understand; the reply already went out
+            }
+        }
+    }
+}
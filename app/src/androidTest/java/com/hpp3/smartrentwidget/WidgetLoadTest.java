@@ -0,0 +1,126 @@
+package com.hpp3.smartrentwidget;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Taps every one of N widgets at once, round after round, against the {@link SmartRentSimulator}
+ * and reports the tap latency percentiles and command throughput to logcat under "WidgetLoadTest".
+ */
+@RunWith(AndroidJUnit4.class)
+public class WidgetLoadTest {
+    private static final String TAG = "WidgetLoadTest";
+    private static final int HUBS = 4;
+    private static final int LOCKS_PER_HUB = 8;
+    private static final int ROUNDS = 10;
+
+    private SmartRentSimulator simulator;
+    private SmartRentClient client;
+
+    private static final class Report {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        int succeeded;
+        int failed;
+        int timedOut;
+        long elapsedMs;
+
+        double commandsPerSecond() {
+            return latencies.getTotal() * 1000.0 / Math.max(1, elapsedMs);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d taps in %dms: %.1f/s, p50 %dms, p90 %dms, p99 %dms, %d failed, %d timed out",
+                    latencies.getTotal(), elapsedMs, commandsPerSecond(), latencies.percentile(50),
+                    latencies.percentile(90), latencies.percentile(99), failed, timedOut);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        simulator = new SmartRentSimulator(HUBS, LOCKS_PER_HUB);
+        client = simulator.newClient(context);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        simulator.close();
+    }
+
+    @Test
+    public void allWidgetsAtOnce() throws Exception {
+        simulator.setLatency(50, 25);
+        Report report = run(HUBS * LOCKS_PER_HUB, ROUNDS);
+        Log.i(TAG, "allWidgetsAtOnce: " + report);
+        assertEquals(HUBS * LOCKS_PER_HUB * ROUNDS, report.succeeded);
+        assertTrue("p99 " + report.latencies.percentile(99) + "ms",
+                report.latencies.percentile(99) < Deadline.Operation.UNLOCK.budgetMs);
+    }
+
+    @Test
+    public void allWidgetsAtOnceOnAFlakyBackend() throws Exception {
+        simulator.setLatency(200, 150);
+        simulator.setErrorRatePct(10);
+        Report report = run(HUBS * LOCKS_PER_HUB, ROUNDS);
+        Log.i(TAG, "allWidgetsAtOnceOnAFlakyBackend: " + report);
+        // Refused commands are retried within their deadline, so hardly any tap should fail outright
+        assertEquals(HUBS * LOCKS_PER_HUB * ROUNDS, report.latencies.getTotal());
+        assertTrue(report.failed + report.timedOut + " of " + report.latencies.getTotal() + " taps lost",
+                report.succeeded >= report.latencies.getTotal() * 9 / 10);
+    }
+
+    // Each round unlocks or locks every widget's lock at once and waits until all have answered.
+    private Report run(int widgets, int rounds) throws InterruptedException {
+        Report report = new Report();
+        long start = SystemClock.elapsedRealtime();
+        for (int round = 0; round < rounds; round++) {
+            String value = round % 2 == 0 ? "false" : "true";
+            CountDownLatch answered = new CountDownLatch(widgets);
+            AtomicInteger succeeded = new AtomicInteger();
+            AtomicInteger failed = new AtomicInteger();
+            AtomicInteger timedOut = new AtomicInteger();
+            for (int widget = 0; widget < widgets; widget++) {
+                int deviceId = SmartRentSimulator.deviceId(widget / LOCKS_PER_HUB + 1, widget % LOCKS_PER_HUB + 1);
+                long tappedAt = SystemClock.elapsedRealtime();
+                Runnable[] outcome = new Runnable[3];
+                AtomicInteger[] counters = {succeeded, failed, timedOut};
+                for (int i = 0; i < outcome.length; i++) {
+                    AtomicInteger counter = counters[i];
+                    outcome[i] = () -> {
+                        synchronized (report) {
+                            report.latencies.record(SystemClock.elapsedRealtime() - tappedAt);
+                        }
+                        counter.incrementAndGet();
+                        answered.countDown();
+                    };
+                }
+                client.sendCommandAsync(deviceId, "locked", value, outcome[0], outcome[1], outcome[2]);
+            }
+            assertTrue("Round " + round + " did not finish",
+                    answered.await(Deadline.Operation.COMMAND.budgetMs, TimeUnit.MILLISECONDS));
+            report.succeeded += succeeded.get();
+            report.failed += failed.get();
+            report.timedOut += timedOut.get();
+        }
+        report.elapsedMs = SystemClock.elapsedRealtime() - start;
+        return report;
+    }
+}
@@ -0,0 +1,142 @@
+package com.hpp3.smartrentwidget;
+
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Logging for the whole app, gated by level, with the most recent events kept in memory so they
+ * can be dumped from {@link MainActivity} when something went wrong in the field.
+ * <p>
+ * Levels below {@link BuildConfig#LOG_LEVEL} are compiled out, so debug logging costs nothing in
+ * release builds; the level can be raised further at runtime with {@link #setLevel}, from
+ * {@link MainActivity}. Messages use {@code {}} placeholders that are only filled in with the
+ * arguments once the event passes the gate, so a skipped event neither formats nor concatenates
+ * anything. An event that is logged, such as any info event in a release build at the default
+ * level, is formatted into a new string like any other log call.
+ */
+final class AppLog {
+    static final boolean DEBUG_ENABLED = BuildConfig.LOG_LEVEL <= Log.DEBUG;
+    private static final int BUFFER_SIZE = 256;
+    private static final String LEVELS = "??VDIWEA";
+
+    private static volatile int level = BuildConfig.LOG_LEVEL;
+
+    // Events in a ring, preallocated so that recording one only stores references
+    private static final long[] times = new long[BUFFER_SIZE];
+    private static final int[] priorities = new int[BUFFER_SIZE];
+    private static final String[] tags = new String[BUFFER_SIZE];
+    private static final String[] messages = new String[BUFFER_SIZE];
+    private static int next;
+    private static int count;
+
+    private AppLog() {
+    }
+
+    static void setLevel(int level) {
+        AppLog.level = Math.max(level, BuildConfig.LOG_LEVEL);
+    }
+
+    static int getLevel() {
+        return level;
+    }
+
+    static boolean isLoggable(int priority) {
+        return priority >= level;
+    }
+
+    static void d(String tag, String format, Object arg) {
+        if (DEBUG_ENABLED && isLoggable(Log.DEBUG)) {
+            log(Log.DEBUG, tag, format(format, 1, arg, null, null), null);
+        }
+    }
+
+    static void i(String tag, String message) {
+        if (isLoggable(Log.INFO)) {
+            log(Log.INFO, tag, message, null);
+        }
+    }
+
+    static void i(String tag, String format, Object arg) {
+        if (isLoggable(Log.INFO)) {
+            log(Log.INFO, tag, format(format, 1, arg, null, null), null);
+        }
+    }
+
+    static void i(String tag, String format, Object arg1, Object arg2) {
+        if (isLoggable(Log.INFO)) {
+            log(Log.INFO, tag, format(format, 2, arg1, arg2, null), null);
+        }
+    }
+
+    static void i(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        if (isLoggable(Log.INFO)) {
+            log(Log.INFO, tag, format(format, 3, arg1, arg2, arg3), null);
+        }
+    }
+
+    static void w(String tag, String message, Throwable t) {
+        if (isLoggable(Log.WARN)) {
+            log(Log.WARN, tag, message, t);
+        }
+    }
+
+    static void e(String tag, String message, Throwable t) {
+        if (isLoggable(Log.ERROR)) {
+            log(Log.ERROR, tag, message, t);
+        }
+    }
+
+    /**
+     * The buffered events, oldest first, one per line in logcat's format.
+     */
+    static String dump() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        StringBuilder out = new StringBuilder();
+        synchronized (messages) {
+            int first = (next - count + BUFFER_SIZE) % BUFFER_SIZE;
+            for (int n = 0; n < count; n++) {
+                int i = (first + n) % BUFFER_SIZE;
+                out.append(dateFormat.format(new Date(times[i]))).append(' ')
+                        .append(LEVELS.charAt(priorities[i])).append('/').append(tags[i]).append(": ")
+                        .append(messages[i]).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static void log(int priority, String tag, String message, Throwable t) {
+        if (t == null) {
+            Log.println(priority, tag, message);
+        } else {
+            Log.println(priority, tag, message + '\n' + Log.getStackTraceString(t));
+        }
+        String buffered = t == null ? message : message + ": " + t;
+        synchronized (messages) {
+            times[next] = System.currentTimeMillis();
+            priorities[next] = priority;
+            tags[next] = tag;
+            messages[next] = buffered;
+            next = (next + 1) % BUFFER_SIZE;
+            count = Math.min(count + 1, BUFFER_SIZE);
+        }
+    }
+
+    // Fills the {} placeholders in order with the first argCount arguments; placeholders beyond
+    // those are left as they are.
+    private static String format(String format, int argCount, Object arg1, Object arg2, Object arg3) {
+        StringBuilder out = new StringBuilder(format.length() + 32);
+        int argIndex = 0;
+        int start = 0;
+        int placeholder;
+        while (argIndex < argCount && (placeholder = format.indexOf("{}", start)) >= 0) {
+            Object arg = argIndex == 0 ? arg1 : argIndex == 1 ? arg2 : arg3;
+            out.append(format, start, placeholder).append(arg);
+            start = placeholder + 2;
+            argIndex++;
+        }
+        return out.append(format, start, format.length()).toString();
+    }
+}
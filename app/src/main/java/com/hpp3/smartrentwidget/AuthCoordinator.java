@@ -0,0 +1,323 @@
+package com.hpp3.smartrentwidget;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import androidx.annotation.NonNull;
+import okhttp3.Authenticator;
+import okhttp3.FormBody;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.Route;
+
+/**
+ * Owns the session token and makes sure only one login or refresh is ever in flight. Every caller
+ * that finds the token missing, expired or rejected joins that one attempt and shares its result,
+ * so a burst of auth failures costs a single login. The login runs on a thread of its own under
+ * the HTTP client's timeouts, and each caller waits for it only as long as its own deadline allows.
+ * <p>
+ * REST calls get the token from {@link #interceptor()} and recover from a 401 through this class
+ * as their OkHttp {@link Authenticator}; the socket reports a refused handshake to
+ * {@link #onHandshakeRejected}.
+ */
+final class AuthCoordinator implements Authenticator {
+    private static final String TAG = "AuthCoordinator";
+    private static final long DEFAULT_TOKEN_LIFETIME_MS = TimeUnit.HOURS.toMillis(1);
+    private static final long TOKEN_REFRESH_MARGIN_MS = TimeUnit.MINUTES.toMillis(5);
+    private static final long TOKEN_EXPIRY_SKEW_MS = TimeUnit.SECONDS.toMillis(30);
+    // A request rejected again with a token fresh from a login won't do better with another one
+    private static final int MAX_AUTH_ATTEMPTS = 2;
+    private static final String BEARER = "Bearer ";
+
+    // The session was dropped while a login for it was in flight
+    private static final class SessionDroppedException extends IOException {
+        SessionDroppedException() {
+            super("Session dropped during the login");
+        }
+    }
+
+    // Must not use this authenticator, so that a rejected login cannot wait on itself
+    private final OkHttpClient authClient;
+    private final String sessionsUrl;
+    private final String tokensUrl;
+    private final CredentialManager credentialManager;
+    private final Metrics metrics;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService logins = Executors.newSingleThreadExecutor();
+
+    private volatile String token;
+    private volatile String refreshToken;
+    private volatile long tokenExpiresAt;
+    private CompletableFuture<String> inFlight;
+    private ScheduledFuture<?> refreshTask;
+    // Bumped by clear(), so that a login started before it cannot store its token after it
+    private long generation;
+
+    AuthCoordinator(OkHttpClient authClient, String sessionsUrl, String tokensUrl,
+                    CredentialManager credentialManager, Metrics metrics, ScheduledExecutorService scheduler) {
+        this.authClient = authClient;
+        this.sessionsUrl = sessionsUrl;
+        this.tokensUrl = tokensUrl;
+        this.credentialManager = credentialManager;
+        this.metrics = metrics;
+        this.scheduler = scheduler;
+        this.token = credentialManager.getAccessToken();
+        this.refreshToken = credentialManager.getRefreshToken();
+        this.tokenExpiresAt = credentialManager.getTokenExpiresAt();
+        if (hasValidToken()) {
+            scheduleRefresh();
+        }
+    }
+
+    boolean hasCredentials() {
+        return !credentialManager.getUsername().isEmpty();
+    }
+
+    boolean hasValidToken() {
+        return token != null && System.currentTimeMillis() < tokenExpiresAt - TOKEN_EXPIRY_SKEW_MS;
+    }
+
+    String currentToken() {
+        return token;
+    }
+
+    /**
+     * Returns a usable token. Only waits on the network when there is no unexpired token at all,
+     * e.g. on the very first launch. Fails with the {@link IOException} the login failed with,
+     * such as {@link SmartRentClient.BackendUnavailableException}.
+     */
+    String getToken(Deadline deadline) throws IOException {
+        String current = token;
+        if (current != null && hasValidToken()) {
+            return current;
+        }
+        return renew(null, deadline);
+    }
+
+    /**
+     * Replaces {@code rejected}, a token the server refused, and returns the new one. If it was
+     * already replaced meanwhile, the replacement is returned without logging in again; if a
+     * login is in flight, its result is waited for instead of starting another.
+     */
+    String renew(String rejected, Deadline deadline) throws IOException {
+        CompletableFuture<String> flight;
+        synchronized (this) {
+            String current = token;
+            if (current != null && !current.equals(rejected) && hasValidToken()) {
+                return current;
+            }
+            if (inFlight == null) {
+                inFlight = startLogin();
+            } else {
+                metrics.increment(Metrics.AUTH_SHARED_WAITS);
+            }
+            flight = inFlight;
+        }
+        try {
+            return deadline == null ? flight.get() : flight.get(deadline.remainingMs(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } catch (TimeoutException e) {
+            throw new SmartRentClient.DeadlineExceededException("Timed out waiting for the login");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the login");
+        }
+    }
+
+    // Called holding the lock. Whoever started the login may stop waiting before it is done.
+    private CompletableFuture<String> startLogin() {
+        CompletableFuture<String> flight = new CompletableFuture<>();
+        long loginGeneration = generation;
+        logins.execute(() -> {
+            try {
+                flight.complete(obtainToken(loginGeneration));
+            } catch (IOException | RuntimeException e) {
+                flight.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    if (inFlight == flight) {
+                        inFlight = null;
+                    }
+                }
+            }
+        });
+        return flight;
+    }
+
+    /**
+     * Forgets the session, e.g. because it belongs to an account that was signed out of. A login
+     * or refresh still in flight fails its waiters and its token is never stored.
+     */
+    void clear() {
+        CompletableFuture<String> abandoned;
+        synchronized (this) {
+            generation++;
+            this.token = null;
+            this.refreshToken = null;
+            this.tokenExpiresAt = 0;
+            if (refreshTask != null) {
+                refreshTask.cancel(false);
+                refreshTask = null;
+            }
+            abandoned = inFlight;
+            inFlight = null;
+        }
+        if (abandoned != null) {
+            abandoned.completeExceptionally(new SessionDroppedException());
+        }
+    }
+
+    /**
+     * Adds the current token to requests that don't carry one.
+     */
+    Interceptor interceptor() {
+        return chain -> {
+            Request request = chain.request();
+            String current = token;
+            if (current == null || request.header("authorization") != null) {
+                return chain.proceed(request);
+            }
+            return chain.proceed(request.newBuilder().header("authorization", BEARER + current).build());
+        };
+    }
+
+    @Override
+    public Request authenticate(Route route, @NonNull Response response) {
+        int attempts = 1;
+        for (Response prior = response.priorResponse(); prior != null; prior = prior.priorResponse()) {
+            attempts++;
+        }
+        if (attempts >= MAX_AUTH_ATTEMPTS) {
+            return null;
+        }
+        String header = response.request().header("authorization");
+        String rejected = header != null && header.startsWith(BEARER) ? header.substring(BEARER.length()) : null;
+        try {
+            String fresh = renew(rejected, null);
+            return response.request().newBuilder().header("authorization", BEARER + fresh).build();
+        } catch (IOException e) {
+            AppLog.i(TAG, "authenticate: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The socket handshake to {@code url} was refused as unauthorized; renews the token it carried
+     * so the next attempt goes out with a valid one.
+     */
+    void onHandshakeRejected(String url) {
+        HttpUrl parsed = HttpUrl.parse(url.replaceFirst("^ws", "http"));
+        try {
+            renew(parsed == null ? null : parsed.queryParameter("token"), null);
+        } catch (IOException e) {
+            AppLog.i(TAG, "onHandshakeRejected: {}", e.getMessage());
+        }
+    }
+
+    private synchronized void scheduleRefresh() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+        }
+        long delay = Math.max(0, tokenExpiresAt - TOKEN_REFRESH_MARGIN_MS - System.currentTimeMillis());
+        String expiring = token;
+        refreshTask = scheduler.schedule(() -> {
+            try {
+                renew(expiring, null);
+            } catch (IOException e) {
+                AppLog.i(TAG, "scheduleRefresh: refresh failed: {}", e.getMessage());
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // Only ever run for the one renewal in flight. Tries the refresh token before logging in.
+    private String obtainToken(long loginGeneration) throws IOException {
+        String refresh = refreshToken;
+        if (refresh != null) {
+            AppLog.i(TAG, "obtainToken: refreshing token");
+            metrics.increment(Metrics.AUTH_REFRESHES);
+            Request request = new Request.Builder()
+                    .url(tokensUrl)
+                    .addHeader("authorization-x-refresh", refresh)
+                    .post(RequestBody.create(new byte[0]))
+                    .build();
+            try (Response response = authClient.newCall(request).execute()) {
+                if (response.isSuccessful()) {
+                    return storeToken(new JSONObject(response.body().string()), loginGeneration);
+                }
+                AppLog.i(TAG, "obtainToken: refresh rejected with {}", response.code());
+            } catch (SmartRentClient.BackendUnavailableException | SessionDroppedException e) {
+                // The login would be refused, or be for nothing, just the same
+                throw e;
+            } catch (IOException | JSONException e) {
+                AppLog.i(TAG, "obtainToken: {}", e);
+            }
+        }
+        return login(loginGeneration);
+    }
+
+    private String login(long loginGeneration) throws IOException {
+        AppLog.i(TAG, "login: fetching token");
+        metrics.increment(Metrics.AUTH_LOGINS);
+        RequestBody body = new FormBody.Builder()
+                .add("email", credentialManager.getUsername())
+                .add("password", credentialManager.getPassword())
+                .build();
+
+        Request request = new Request.Builder()
+                .url(sessionsUrl)
+                .post(body)
+                .build();
+
+        try (Response response = authClient.newCall(request).execute()) {
+            if (response.isSuccessful()) {
+                return storeToken(new JSONObject(response.body().string()), loginGeneration);
+            } else {
+                throw new IOException("Failed to fetch the token: " + response.code());
+            }
+        } catch (JSONException e) {
+            throw new IOException("Unreadable session", e);
+        }
+    }
+
+    private String storeToken(JSONObject session, long loginGeneration) throws JSONException, IOException {
+        String accessToken = session.getString("access_token");
+        // "expires" is a unix timestamp in seconds; fall back to a conservative lifetime without it
+        long expires = session.optLong("expires", 0);
+        long expiresAt = expires > 0
+                ? TimeUnit.SECONDS.toMillis(expires)
+                : System.currentTimeMillis() + DEFAULT_TOKEN_LIFETIME_MS;
+        String refresh = session.optString("refresh_token", null);
+
+        synchronized (this) {
+            if (loginGeneration != generation) {
+                throw new SessionDroppedException();
+            }
+            this.refreshToken = refresh;
+            this.tokenExpiresAt = expiresAt;
+            this.token = accessToken;
+            credentialManager.storeToken(accessToken, refresh, expiresAt);
+            scheduleRefresh();
+        }
+        return accessToken;
+    }
+}
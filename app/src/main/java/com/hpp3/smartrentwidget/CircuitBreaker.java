@@ -0,0 +1,199 @@
+package com.hpp3.smartrentwidget;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * Stops calling the backend while it is down, so a tap fails in an instant instead of after a
+ * token fetch, two socket attempts and a retry, and a struggling server is not piled on.
+ * <p>
+ * The outcomes of the last {@link #WINDOW_SIZE} calls are kept; once at least
+ * {@link #MIN_CALLS} of them are in and half or more failed, the circuit opens and calls are
+ * refused. After a cool-down a few probe calls are let through: the first to succeed closes the
+ * circuit, a failure opens it again for twice as long. Only the backend failing counts, meaning
+ * network errors, timeouts, 5xx and 429 responses; a refused password or command does not, and
+ * neither does anything that fails while the device itself is offline.
+ */
+final class CircuitBreaker {
+    private static final String TAG = "CircuitBreaker";
+    private static final int WINDOW_SIZE = 20;
+    private static final int MIN_CALLS = 5;
+    private static final int FAILURE_RATE_THRESHOLD_PCT = 50;
+    private static final long MIN_OPEN_MS = 30_000;
+    private static final long MAX_OPEN_MS = 5 * 60_000;
+    // A tap needs a token refresh and a socket handshake, both of which have to get through
+    private static final int MAX_PROBES = 2;
+
+    enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final NetworkState networkState;
+    private final Metrics metrics;
+    private final boolean[] window = new boolean[WINDOW_SIZE];
+    private int windowCount;
+    private int windowNext;
+    private int windowFailures;
+    private State state = State.CLOSED;
+    private long openUntil;
+    private long openMs = MIN_OPEN_MS;
+    private int probes;
+
+    CircuitBreaker(NetworkState networkState, Metrics metrics) {
+        this.networkState = networkState;
+        this.metrics = metrics;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Whether calls are currently refused without being tried. Unlike {@link #tryAcquire()} this
+     * never lets a probe through.
+     */
+    synchronized boolean isOpen() {
+        if (state == State.OPEN) {
+            return SystemClock.elapsedRealtime() < openUntil;
+        }
+        return state == State.HALF_OPEN && probes >= MAX_PROBES;
+    }
+
+    /**
+     * Returns whether a call may go out now, letting it through as a probe if the cool-down is
+     * over. A call that was let through has to report its outcome.
+     */
+    synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (SystemClock.elapsedRealtime() < openUntil) {
+                return false;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probes >= MAX_PROBES) {
+                return false;
+            }
+            probes++;
+        }
+        return true;
+    }
+
+    synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            openMs = MIN_OPEN_MS;
+            transition(State.CLOSED);
+            return;
+        }
+        record(false);
+    }
+
+    synchronized void recordFailure() {
+        if (!networkState.isOnline()) {
+            release();
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            openMs = Math.min(MAX_OPEN_MS, openMs * 2);
+            open();
+            return;
+        }
+        if (state == State.OPEN) {
+            return;
+        }
+        record(true);
+        if (windowCount >= MIN_CALLS && windowFailures * 100 >= windowCount * FAILURE_RATE_THRESHOLD_PCT) {
+            open();
+        }
+    }
+
+    /**
+     * Percentage of the calls in the window that failed.
+     */
+    synchronized int failureRatePct() {
+        return windowCount == 0 ? 0 : windowFailures * 100 / windowCount;
+    }
+
+    /**
+     * Refuses calls while the circuit is open, with {@link SmartRentClient.BackendUnavailableException},
+     * and records the outcome of the others.
+     */
+    Interceptor interceptor() {
+        return chain -> {
+            if (!tryAcquire()) {
+                metrics.increment(Metrics.CIRCUIT_REJECTED);
+                throw new SmartRentClient.BackendUnavailableException("Backend unavailable, not calling "
+                        + chain.request().url().encodedPath());
+            }
+            Response response;
+            try {
+                response = chain.proceed(chain.request());
+            } catch (IOException e) {
+                // Calls we cancelled ourselves, e.g. a losing connection attempt, say nothing about the backend
+                if (!chain.call().isCanceled() || e instanceof InterruptedIOException) {
+                    recordFailure();
+                } else {
+                    release();
+                }
+                throw e;
+            }
+            if (response.code() >= 500 || response.code() == 429) {
+                recordFailure();
+            } else {
+                recordSuccess();
+            }
+            return response;
+        };
+    }
+
+    // Gives back the probe slot of a call that ended without telling anything.
+    private synchronized void release() {
+        if (state == State.HALF_OPEN && probes > 0) {
+            probes--;
+        }
+    }
+
+    private void record(boolean failed) {
+        if (windowCount == WINDOW_SIZE) {
+            if (window[windowNext]) {
+                windowFailures--;
+            }
+        } else {
+            windowCount++;
+        }
+        window[windowNext] = failed;
+        if (failed) {
+            windowFailures++;
+        }
+        windowNext = (windowNext + 1) % WINDOW_SIZE;
+    }
+
+    private void open() {
+        openUntil = SystemClock.elapsedRealtime() + openMs;
+        transition(State.OPEN);
+    }
+
+    private void transition(State next) {
+        AppLog.i(TAG, "transition: {} -> {} at {}% failures", state, next, failureRatePct());
+        state = next;
+        probes = 0;
+        if (next != State.HALF_OPEN) {
+            windowCount = windowNext = windowFailures = 0;
+        }
+        switch (next) {
+            case OPEN:
+                metrics.increment(Metrics.CIRCUIT_OPENED);
+                break;
+            case HALF_OPEN:
+                metrics.increment(Metrics.CIRCUIT_HALF_OPENED);
+                break;
+            default:
+                metrics.increment(Metrics.CIRCUIT_CLOSED);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.hpp3.smartrentwidget;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps at most one command in flight per device attribute.
+ * <p>
+ * A request for the value that is already being sent attaches to the in-flight command and shares
+ * its outcome. A request for a different value waits behind it; if several arrive meanwhile only
+ * the latest value is sent, and every waiting caller is told its outcome. That send is handed to
+ * the worker rather than made on the thread that reported the previous outcome, typically a socket
+ * thread that must not wait on a login.
+ */
+final class CommandCoalescer {
+
+    interface Sender {
+        void send(int deviceId, String attributeName, String value, TapTrace trace, Deadline deadline,
+                  Runnable success, Runnable failure);
+    }
+
+    private static class Operation {
+        final String value;
+        final TapTrace trace;
+        final Deadline deadline;
+        final List<Runnable> successes = new ArrayList<>();
+        final List<Runnable> failures = new ArrayList<>();
+
+        Operation(String value, TapTrace trace, Deadline deadline) {
+            this.value = value;
+            this.trace = trace;
+            this.deadline = deadline;
+        }
+
+        void attach(Runnable success, Runnable failure) {
+            successes.add(success);
+            failures.add(failure);
+        }
+    }
+
+    private static class Slot {
+        Operation inFlight;
+        Operation next;
+    }
+
+    private final Sender sender;
+    private final Executor worker;
+    private final Map<String, Slot> slots = new HashMap<>();
+
+    CommandCoalescer(Sender sender, Executor worker) {
+        this.sender = sender;
+        this.worker = worker;
+    }
+
+    /**
+     * Only the {@code trace} and {@code deadline} of the request that actually gets sent are
+     * followed; either may be null.
+     */
+    void submit(int deviceId, String attributeName, String value, TapTrace trace, Deadline deadline,
+                Runnable success, Runnable failure) {
+        String key = deviceId + ":" + attributeName;
+        Operation start;
+        synchronized (this) {
+            Slot slot = slots.get(key);
+            if (slot == null) {
+                slot = new Slot();
+                slots.put(key, slot);
+            }
+            if (slot.inFlight == null) {
+                slot.inFlight = new Operation(value, trace, deadline);
+                slot.inFlight.attach(success, failure);
+                start = slot.inFlight;
+            } else if (slot.next == null && slot.inFlight.value.equals(value)) {
+                slot.inFlight.attach(success, failure);
+                return;
+            } else {
+                if (slot.next == null) {
+                    slot.next = new Operation(value, trace, deadline);
+                } else if (!slot.next.value.equals(value)) {
+                    // Only the latest requested value is worth sending
+                    Operation superseded = slot.next;
+                    slot.next = new Operation(value, trace, deadline);
+                    slot.next.successes.addAll(superseded.successes);
+                    slot.next.failures.addAll(superseded.failures);
+                }
+                slot.next.attach(success, failure);
+                return;
+            }
+        }
+        send(key, deviceId, attributeName, start);
+    }
+
+    private void send(String key, int deviceId, String attributeName, Operation operation) {
+        sender.send(deviceId, attributeName, operation.value, operation.trace, operation.deadline,
+                () -> complete(key, deviceId, attributeName, operation, true),
+                () -> complete(key, deviceId, attributeName, operation, false));
+    }
+
+    private void complete(String key, int deviceId, String attributeName, Operation operation, boolean succeeded) {
+        Operation next;
+        synchronized (this) {
+            Slot slot = slots.get(key);
+            if (slot == null || slot.inFlight != operation) {
+                return;
+            }
+            next = slot.next;
+            slot.inFlight = next;
+            slot.next = null;
+            if (next == null) {
+                slots.remove(key);
+            }
+        }
+        for (Runnable callback : succeeded ? operation.successes : operation.failures) {
+            callback.run();
+        }
+        if (next != null) {
+            worker.execute(() -> send(key, deviceId, attributeName, next));
+        }
+    }
+}
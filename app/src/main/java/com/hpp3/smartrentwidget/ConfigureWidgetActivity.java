@@ -7,24 +7,19 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Log;
+import android.util.SparseBooleanArray;
 import android.view.View;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import org.json.JSONException;
-
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
-
-import androidx.security.crypto.EncryptedSharedPreferences;
+import java.util.concurrent.Executor;
 
 public class ConfigureWidgetActivity extends Activity {
     private EditText usernameEditText;
@@ -32,87 +27,143 @@ public class ConfigureWidgetActivity extends Activity {
     private Button loginButton;
     private ListView deviceListView;
     private TextView descTextView;
+    private CheckBox groupCheckBox;
+    private Button groupButton;
+    private ArrayAdapter<SmartRentLock> deviceAdapter;
+    private List<SmartRentLock> shownDevices;
     int appWidgetId = AppWidgetManager.INVALID_APPWIDGET_ID;
     private static final String TAG = "ConfigureWidgetActivity";
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private Executor executor;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setResult(RESULT_CANCELED);
         setContentView(R.layout.activity_login);
+        executor = SmartRentApplication.getDispatcher(this);
 
         usernameEditText = findViewById(R.id.usernameEditText);
         passwordEditText = findViewById(R.id.passwordEditText);
         loginButton = findViewById(R.id.loginButton);
         deviceListView = findViewById(R.id.deviceListView);
         descTextView = findViewById(R.id.descText);
+        groupCheckBox = findViewById(R.id.groupCheckBox);
+        groupButton = findViewById(R.id.groupButton);
         Intent intent = getIntent();
         Bundle extras = intent.getExtras();
         if (extras != null) {
             appWidgetId = extras.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
         }
         if (appWidgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
-            Log.i(TAG, "onCreate: appwidgetID is invalid");
+            AppLog.i(TAG, "onCreate: appwidgetID is invalid");
             finish();
             return;
         }
 
-        EncryptedSharedPreferences encryptedSharedPreferences = CredentialManager.getInstance(this).getEncryptedSharedPreferences();
-        usernameEditText.setText(encryptedSharedPreferences.getString("username", ""));
-        passwordEditText.setText(encryptedSharedPreferences.getString("password", ""));
+        // Opening the encrypted store can take a while on a cold start, so keep it off the main thread
+        Context context = getApplicationContext();
+        executor.execute(() -> {
+            CredentialManager credentialManager = CredentialManager.getInstance(context);
+            runOnUiThread(() -> {
+                usernameEditText.setText(credentialManager.getUsername());
+                passwordEditText.setText(credentialManager.getPassword());
+            });
+        });
 
         loginButton.setOnClickListener(view -> onLoginClicked(usernameEditText.getText().toString(), passwordEditText.getText().toString()));
     }
 
+    // Shows the list backed by devices, which only grows through deviceAdapter.
     private void populateDeviceList(List<SmartRentLock> devices) {
-        ArrayAdapter<SmartRentLock> adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, devices);
+        shownDevices = devices;
+        deviceAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, devices);
         descTextView.setVisibility(View.VISIBLE);
-        deviceListView.setAdapter(adapter);
+        deviceListView.setAdapter(deviceAdapter);
         deviceListView.setVisibility(View.VISIBLE);
+        groupCheckBox.setVisibility(View.VISIBLE);
         Context ctx = this;
 
+        // In group mode taps check devices instead, and the group button creates the widget
+        groupCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            deviceListView.clearChoices();
+            deviceListView.setChoiceMode(isChecked ? ListView.CHOICE_MODE_MULTIPLE : ListView.CHOICE_MODE_NONE);
+            deviceAdapter = new ArrayAdapter<>(ctx, isChecked
+                    ? android.R.layout.simple_list_item_multiple_choice
+                    : android.R.layout.simple_list_item_1, devices);
+            deviceListView.setAdapter(deviceAdapter);
+            descTextView.setText(isChecked ? "Check the devices to group, then create the widget."
+                    : "Tap a device below to create a widget.");
+            groupButton.setVisibility(isChecked ? View.VISIBLE : View.GONE);
+        });
+        groupButton.setOnClickListener(view -> {
+            SparseBooleanArray checked = deviceListView.getCheckedItemPositions();
+            ArrayList<SmartRentLock> selected = new ArrayList<>();
+            for (int i = 0; i < devices.size(); i++) {
+                if (checked != null && checked.get(i)) {
+                    selected.add(devices.get(i));
+                }
+            }
+            if (selected.isEmpty()) {
+                return;
+            }
+            AppLog.i(TAG, "onGroupClick: appwidgetID {} with {} devices", appWidgetId, selected.size());
+            if (selected.size() == 1) {
+                LockWidgetManager.saveLockConfiguration(ctx, appWidgetId, selected.get(0));
+            } else {
+                LockWidgetManager.saveGroupConfiguration(ctx, appWidgetId, selected.toArray(new SmartRentLock[0]));
+            }
+            finishConfiguration();
+        });
+
         deviceListView.setOnItemClickListener((parent, view, position, id) -> {
-            Log.i(TAG, "onItemClick: appwidgetID " + appWidgetId);
+            if (groupCheckBox.isChecked()) {
+                return;
+            }
+            AppLog.i(TAG, "onItemClick: appwidgetID {}", appWidgetId);
             SmartRentLock selectedDevice = devices.get(position);
             LockWidgetManager.saveLockConfiguration(ctx, appWidgetId, selectedDevice);
+            finishConfiguration();
+        });
+    }
 
-            Intent resultValue = new Intent();
-            resultValue.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+    private void finishConfiguration() {
+        Intent resultValue = new Intent();
+        resultValue.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
 
-            Intent intent = new Intent();
-            intent.setAction(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
-            intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, new int[]{appWidgetId});
-            sendBroadcast(intent);
-            setResult(RESULT_OK, resultValue);
-            executor.shutdown();
-            finish();
-        });
+        Intent intent = new Intent();
+        intent.setAction(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
+        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, new int[]{appWidgetId});
+        sendBroadcast(intent);
+        setResult(RESULT_OK, resultValue);
+        finish();
     }
 
     public void onLoginClicked(String username, String password) {
-        CredentialManager.getInstance(this).storeCredentials(username, password);
+        List<SmartRentLock> devices = new ArrayList<>();
+        populateDeviceList(devices);
         executor.execute(() -> {
             try {
+                CredentialManager.getInstance(getApplicationContext()).storeCredentials(username, password);
                 SmartRentClient client = SmartRentClient.getInstance(getApplicationContext());
-                ArrayList<SmartRentLock> locks = client.getDevicesData().stream().filter(device -> {
-                    try {
-                        return device.get("type").equals("entry_control");
-                    } catch (JSONException e) {
-                        throw new RuntimeException(e);
-                    }
-                }).map(device -> {
-                    try {
-                        return new SmartRentLock(device.getInt("id"), device.get("name").toString());
-                    } catch (JSONException e) {
-                        throw new RuntimeException(e);
-                    }
-                }).collect(Collectors.toCollection(ArrayList::new));
+                // Each hub's devices become selectable as soon as that hub responds
                 Handler mainHandler = new Handler(Looper.getMainLooper());
-                mainHandler.post(() -> populateDeviceList(locks));
-            } catch (SmartRentClient.InvalidAuthException | IOException | JSONException e) {
-                throw new RuntimeException(e);
+                client.getDevices(SmartRentLock.TYPE_ENTRY_CONTROL, (hubId, locks) -> mainHandler.post(() -> {
+                    // Hubs still answering an earlier login are ignored
+                    if (shownDevices == devices) {
+                        deviceAdapter.addAll(locks);
+                    }
+                }));
+            } catch (SmartRentClient.DeadlineExceededException e) {
+                AppLog.i(TAG, "onLoginClicked: {}", e.getMessage());
+                runOnUiThread(() -> descTextView.setText("Timed out listing devices, tap Get Devices to try again."));
+            } catch (SmartRentClient.BackendUnavailableException e) {
+                AppLog.i(TAG, "onLoginClicked: {}", e.getMessage());
+                runOnUiThread(() -> descTextView.setText("SmartRent is not responding, try again in a minute."));
+            } catch (SmartRentClient.InvalidAuthException | IOException e) {
+                // A wrong password lands here too, which is no reason to take the app down
+                AppLog.i(TAG, "onLoginClicked: {}", e.getMessage());
+                runOnUiThread(() -> descTextView.setText("Could not list devices: " + e.getMessage()));
             }
         });
     }
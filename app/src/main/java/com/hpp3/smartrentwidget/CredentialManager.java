@@ -1,15 +1,58 @@
 package com.hpp3.smartrentwidget;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import androidx.security.crypto.EncryptedSharedPreferences;
 import androidx.security.crypto.MasterKey;
 
+/**
+ * Encrypted storage for the account credentials and session. Setting up the Keystore key and Tink
+ * is slow, so {@link #warmUp} starts it when the process starts; after that every read is served
+ * from an in-memory snapshot of the decrypted values and only writes touch the encrypted store.
+ */
 public class CredentialManager {
+    private static final String PREFERENCES_NAME = "encrypted_prefs";
+    private static final String KEY_USERNAME = "username";
+    private static final String KEY_PASSWORD = "password";
+    private static final String KEY_ACCESS_TOKEN = "access_token";
+    private static final String KEY_REFRESH_TOKEN = "refresh_token";
+    private static final String KEY_TOKEN_EXPIRES_AT = "token_expires_at";
+
+    public interface OnCredentialsChangedListener {
+        void onCredentialsChanged(CredentialManager credentialManager);
+    }
+
+    // Immutable view of the decrypted values, replaced as a whole on every write
+    private static final class Snapshot {
+        final String username;
+        final String password;
+        final String accessToken;
+        final String refreshToken;
+        final long tokenExpiresAt;
+
+        Snapshot(String username, String password, String accessToken, String refreshToken, long tokenExpiresAt) {
+            this.username = username;
+            this.password = password;
+            this.accessToken = accessToken;
+            this.refreshToken = refreshToken;
+            this.tokenExpiresAt = tokenExpiresAt;
+        }
+    }
+
     private static volatile CredentialManager instance;
     private final EncryptedSharedPreferences encryptedSharedPreferences;
+    private final CopyOnWriteArrayList<OnCredentialsChangedListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Snapshot snapshot;
 
-    private CredentialManager(Context context) {
+    /**
+     * A store of its own under {@code preferencesName}, apart from the one {@link #getInstance}
+     * returns, so that e.g. tests leave the user's login alone.
+     */
+    CredentialManager(Context context, String preferencesName) {
         try {
             MasterKey masterKey = new MasterKey.Builder(context)
                     .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
@@ -17,35 +60,121 @@ public class CredentialManager {
 
             encryptedSharedPreferences = (EncryptedSharedPreferences) EncryptedSharedPreferences.create(
                     context,
-                    "encrypted_prefs",
+                    preferencesName,
                     masterKey,
                     EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
                     EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM
             );
         } catch (Exception e) {
-            e.printStackTrace();
+            AppLog.e("CredentialManager", "CredentialManager: could not open the encrypted store", e);
             throw new RuntimeException(e);
         }
+        snapshot = new Snapshot(
+                encryptedSharedPreferences.getString(KEY_USERNAME, ""),
+                encryptedSharedPreferences.getString(KEY_PASSWORD, ""),
+                encryptedSharedPreferences.getString(KEY_ACCESS_TOKEN, null),
+                encryptedSharedPreferences.getString(KEY_REFRESH_TOKEN, null),
+                encryptedSharedPreferences.getLong(KEY_TOKEN_EXPIRES_AT, 0));
     }
 
     public static CredentialManager getInstance(Context context) {
         if (instance == null) {
+            long start = SystemClock.elapsedRealtime();
             synchronized (CredentialManager.class) {
                 if (instance == null) {
-                    instance = new CredentialManager(context);
+                    instance = new CredentialManager(context.getApplicationContext(), PREFERENCES_NAME);
+                    Metrics.getInstance(context).recordLatency("credentials_init",
+                            SystemClock.elapsedRealtime() - start);
+                    return instance;
                 }
             }
+            // Someone else was initializing; this is how long the caller was held up by it
+            Metrics.getInstance(context).recordLatency("credentials_wait",
+                    SystemClock.elapsedRealtime() - start);
         }
         return instance;
     }
 
+    /**
+     * Starts decrypting the store in the background so that latency-sensitive callers find it
+     * ready. Call once at process start.
+     */
+    public static void warmUp(Context context) {
+        Context appContext = context.getApplicationContext();
+        SmartRentApplication.getDispatcher(appContext).execute(() -> {
+            try {
+                getInstance(appContext);
+            } catch (RuntimeException e) {
+                AppLog.e("CredentialManager", "warmUp: failed", e);
+            }
+        });
+    }
+
+    public void addOnCredentialsChangedListener(OnCredentialsChangedListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeOnCredentialsChangedListener(OnCredentialsChangedListener listener) {
+        listeners.remove(listener);
+    }
+
     public void storeCredentials(String username, String password) {
+        boolean changed;
+        synchronized (this) {
+            Snapshot current = snapshot;
+            changed = !username.equals(current.username) || !password.equals(current.password);
+            SharedPreferences.Editor editor = encryptedSharedPreferences.edit()
+                    .putString(KEY_USERNAME, username)
+                    .putString(KEY_PASSWORD, password);
+            if (changed) {
+                // A session belongs to the account it was issued for
+                editor.remove(KEY_ACCESS_TOKEN).remove(KEY_REFRESH_TOKEN).remove(KEY_TOKEN_EXPIRES_AT);
+                snapshot = new Snapshot(username, password, null, null, 0);
+            }
+            editor.apply();
+        }
+        if (changed) {
+            for (OnCredentialsChangedListener listener : listeners) {
+                listener.onCredentialsChanged(this);
+            }
+        }
+    }
+
+    public synchronized void storeToken(String accessToken, String refreshToken, long expiresAtMillis) {
+        Snapshot current = snapshot;
+        snapshot = new Snapshot(current.username, current.password, accessToken, refreshToken, expiresAtMillis);
+        encryptedSharedPreferences.edit()
+                .putString(KEY_ACCESS_TOKEN, accessToken)
+                .putString(KEY_REFRESH_TOKEN, refreshToken)
+                .putLong(KEY_TOKEN_EXPIRES_AT, expiresAtMillis).apply();
+    }
+
+    public synchronized void clearToken() {
+        Snapshot current = snapshot;
+        snapshot = new Snapshot(current.username, current.password, null, null, 0);
         encryptedSharedPreferences.edit()
-                .putString("username", username)
-                .putString("password", password).apply();
+                .remove(KEY_ACCESS_TOKEN)
+                .remove(KEY_REFRESH_TOKEN)
+                .remove(KEY_TOKEN_EXPIRES_AT).apply();
+    }
+
+    public String getUsername() {
+        return snapshot.username;
+    }
+
+    public String getPassword() {
+        return snapshot.password;
+    }
+
+    public String getAccessToken() {
+        return snapshot.accessToken;
+    }
+
+    public String getRefreshToken() {
+        return snapshot.refreshToken;
     }
 
-    public EncryptedSharedPreferences getEncryptedSharedPreferences() {
-        return encryptedSharedPreferences;
+    public long getTokenExpiresAt() {
+        return snapshot.tokenExpiresAt;
     }
 }
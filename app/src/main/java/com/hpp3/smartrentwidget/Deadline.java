@@ -0,0 +1,53 @@
+package com.hpp3.smartrentwidget;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time by which an operation has to be done, handed down through every step of it
+ * (token fetch, connect, join, reply) so that each step only gets the time that is left.
+ */
+final class Deadline {
+    /**
+     * How long each kind of operation may take end to end.
+     */
+    enum Operation {
+        // Listing devices while configuring a widget, with someone watching the screen
+        DEVICE_LIST(TimeUnit.SECONDS.toMillis(30)),
+        // An unlock the user is waiting on; widget taps set a tighter deadline of their own, see
+        // WidgetClickedReceiver
+        UNLOCK(TimeUnit.SECONDS.toMillis(8)),
+        // Any other command, which may wait out a short outage
+        COMMAND(TimeUnit.MINUTES.toMillis(5));
+
+        final long budgetMs;
+
+        Operation(long budgetMs) {
+            this.budgetMs = budgetMs;
+        }
+    }
+
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    static Deadline after(long budgetMs) {
+        return new Deadline(SystemClock.elapsedRealtime() + budgetMs);
+    }
+
+    // A deadline at the given {@link SystemClock#elapsedRealtime()}, for a budget that started earlier.
+    static Deadline at(long elapsedRealtimeMs) {
+        return new Deadline(elapsedRealtimeMs);
+    }
+
+    long remainingMs() {
+        return Math.max(0, expiresAt - SystemClock.elapsedRealtime());
+    }
+
+    boolean isExpired() {
+        return SystemClock.elapsedRealtime() >= expiresAt;
+    }
+}
@@ -0,0 +1,93 @@
+package com.hpp3.smartrentwidget;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams the /hubs and /hubs/{id}/devices responses straight off the wire, keeping only the
+ * fields the widget needs instead of materializing every device attribute as a JSON tree.
+ */
+final class DeviceListDecoder {
+
+    private DeviceListDecoder() {
+    }
+
+    static List<Integer> decodeHubIds(Reader source) throws IOException {
+        ArrayList<Integer> hubIds = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(source)) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                int hubId = SmartRentLock.NO_HUB;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("id".equals(reader.nextName())) {
+                        hubId = reader.nextInt();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (hubId != SmartRentLock.NO_HUB) {
+                    hubIds.add(hubId);
+                }
+            }
+            reader.endArray();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed hubs response", e);
+        }
+        return hubIds;
+    }
+
+    /**
+     * Decodes a hub's device array, keeping only devices of {@code deviceType}, or every device
+     * when it is null.
+     */
+    static List<SmartRentLock> decodeDevices(Reader source, int hubId, String deviceType) throws IOException {
+        ArrayList<SmartRentLock> devices = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(source)) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                int id = -1;
+                String name = null;
+                String type = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "id":
+                            id = reader.nextInt();
+                            break;
+                        case "name":
+                            name = nextStringOrNull(reader);
+                            break;
+                        case "type":
+                            type = nextStringOrNull(reader);
+                            break;
+                        default:
+                            reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (id != -1 && (deviceType == null || deviceType.equals(type))) {
+                    devices.add(new SmartRentLock(id, name == null ? "" : name, type, hubId));
+                }
+            }
+            reader.endArray();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed devices response for hub " + hubId, e);
+        }
+        return devices;
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
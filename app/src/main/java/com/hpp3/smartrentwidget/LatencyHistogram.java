@@ -0,0 +1,107 @@
+package com.hpp3.smartrentwidget;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Fixed-size latency histogram with four logarithmic buckets per power of two, covering
+ * 0 ms to roughly a minute. Recording is a single array increment; percentiles are reported
+ * as the upper bound of the bucket they fall into, i.e. within 19% of the true value.
+ */
+final class LatencyHistogram {
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    private static final int BUCKET_COUNT = 64;
+    private static final double LOG_2 = Math.log(2);
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long total;
+
+    void record(long millis) {
+        counts[bucketOf(millis)]++;
+        total++;
+    }
+
+    long getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns the latency in ms below which {@code percentile} percent of the samples fall, or -1
+     * if nothing was recorded.
+     */
+    long percentile(double percentile) {
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank)) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKET_COUNT - 1);
+    }
+
+    private static int bucketOf(long millis) {
+        if (millis <= 0) {
+            return 0;
+        }
+        int bucket = (int) (BUCKETS_PER_DOUBLING * Math.log(millis + 1) / LOG_2);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return (long) Math.pow(2, (bucket + 1) / (double) BUCKETS_PER_DOUBLING) - 1;
+    }
+
+    // Compact persisted form: the bucket counts, comma separated, trailing empty buckets dropped.
+    String serialize() {
+        int last = BUCKET_COUNT - 1;
+        while (last > 0 && counts[last] == 0) {
+            last--;
+        }
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i <= last; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(counts[i]);
+        }
+        return out.toString();
+    }
+
+    static LatencyHistogram deserialize(String serialized) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        if (serialized == null || serialized.isEmpty()) {
+            return histogram;
+        }
+        String[] parts = serialized.split(",");
+        for (int i = 0; i < parts.length && i < BUCKET_COUNT; i++) {
+            try {
+                histogram.counts[i] = Long.parseLong(parts[i]);
+                histogram.total += histogram.counts[i];
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return histogram;
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", total);
+        json.put("p50", percentile(50));
+        json.put("p95", percentile(95));
+        json.put("p99", percentile(99));
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts[i] > 0) {
+                buckets.put(new JSONArray().put(upperBound(i)).put(counts[i]));
+            }
+        }
+        json.put("buckets_le_ms", buckets);
+        return json;
+    }
+}
@@ -2,40 +2,314 @@ package com.hpp3.smartrentwidget;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.AtomicFile;
+import android.util.SparseArray;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Widget id → lock mappings, kept in memory for the life of the process and persisted as a single
+ * atomically replaced file. Lookups never touch storage; every change rewrites the file once,
+ * however many widgets it covers, before returning. The file is small, and writing it in place
+ * means a configuration is saved before the activity or broadcast that made it ends.
+ * <p>
+ * A widget either shows a single lock or is a group widget that operates several locks at once.
+ */
 public class LockWidgetManager {
+    private static final String TAG = "LockWidgetManager";
+    private static final String FILE_NAME = "widget_locks.bin";
+    private static final int FILE_VERSION = 2;
+    // Version 1 files have no group widgets
+    private static final int FILE_VERSION_SINGLE = 1;
+    // Storage used before the single file, migrated on first load
     private static final String PREFERENCES_NAME = "LockWidgetPrefs";
     private static final String PREF_PREFIX = "smartrentwidget_";
     private static final String PREF_PREFIX_KEY_NAME = PREF_PREFIX + "name_";
     private static final String PREF_PREFIX_KEY_ID = PREF_PREFIX + "id_";
 
+    private static final Object cacheLock = new Object();
+    private static SparseArray<SmartRentLock> cache;
+    private static SparseArray<SmartRentLock[]> groupCache;
+
     private LockWidgetManager() {
     }
 
     public static void saveLockConfiguration(Context context, int appWidgetId, SmartRentLock lock) {
-        SharedPreferences.Editor prefs = context.getSharedPreferences(PREFERENCES_NAME, 0).edit();
-        prefs.putString(PREF_PREFIX_KEY_NAME + appWidgetId, lock.getName());
-        prefs.putInt(PREF_PREFIX_KEY_ID + appWidgetId, lock.getDeviceId());
-        prefs.apply();
+        synchronized (cacheLock) {
+            load(context).put(appWidgetId, lock);
+            groupCache.remove(appWidgetId);
+            persist(context);
+        }
     }
 
-    // Call this method to retrieve the widget configuration from persistent storage.
+    // Call this method to retrieve the widget configuration; served from memory after the first load.
     public static SmartRentLock loadLockConfiguration(Context context, int appWidgetId) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFERENCES_NAME, 0);
-        String name = prefs.getString(PREF_PREFIX_KEY_NAME + appWidgetId, null);
-        int deviceId = prefs.getInt(PREF_PREFIX_KEY_ID + appWidgetId, -1);
-        if (name != null && deviceId != -1) {
-            return new SmartRentLock(deviceId, name);
-        } else {
-            return null;
+        synchronized (cacheLock) {
+            return load(context).get(appWidgetId);
+        }
+    }
+
+    // Returns the configuration of each widget, or null for widgets that have none.
+    public static SmartRentLock[] loadLockConfigurations(Context context, int[] appWidgetIds) {
+        SmartRentLock[] locks = new SmartRentLock[appWidgetIds.length];
+        synchronized (cacheLock) {
+            SparseArray<SmartRentLock> configurations = load(context);
+            for (int i = 0; i < appWidgetIds.length; i++) {
+                locks[i] = configurations.get(appWidgetIds[i]);
+            }
+        }
+        return locks;
+    }
+
+    public static void saveGroupConfiguration(Context context, int appWidgetId, SmartRentLock[] locks) {
+        synchronized (cacheLock) {
+            load(context).remove(appWidgetId);
+            groupCache.put(appWidgetId, locks.clone());
+            persist(context);
+        }
+    }
+
+    // Returns the locks of a group widget, or null if the widget is not a group widget.
+    public static SmartRentLock[] loadGroupConfiguration(Context context, int appWidgetId) {
+        synchronized (cacheLock) {
+            load(context);
+            SmartRentLock[] locks = groupCache.get(appWidgetId);
+            return locks == null ? null : locks.clone();
+        }
+    }
+
+    // Returns the distinct device ids the given widgets, single or group, are configured for.
+    public static int[] getDeviceIds(Context context, int[] appWidgetIds) {
+        LinkedHashSet<Integer> deviceIds = new LinkedHashSet<>();
+        synchronized (cacheLock) {
+            SparseArray<SmartRentLock> configurations = load(context);
+            for (int appWidgetId : appWidgetIds) {
+                SmartRentLock lock = configurations.get(appWidgetId);
+                if (lock != null) {
+                    deviceIds.add(lock.getDeviceId());
+                }
+                SmartRentLock[] group = groupCache.get(appWidgetId);
+                if (group != null) {
+                    for (SmartRentLock member : group) {
+                        deviceIds.add(member.getDeviceId());
+                    }
+                }
+            }
+        }
+        int[] result = new int[deviceIds.size()];
+        int i = 0;
+        for (int deviceId : deviceIds) {
+            result[i++] = deviceId;
+        }
+        return result;
+    }
+
+    // Whether any widget, single or group, operates the device.
+    public static boolean hasWidgets(Context context, int deviceId) {
+        if (getWidgetIds(context, deviceId).length > 0) {
+            return true;
+        }
+        synchronized (cacheLock) {
+            for (int i = 0; i < groupCache.size(); i++) {
+                for (SmartRentLock member : groupCache.valueAt(i)) {
+                    if (member.getDeviceId() == deviceId) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // Returns every single-lock widget configured for the device.
+    public static int[] getWidgetIds(Context context, int deviceId) {
+        synchronized (cacheLock) {
+            SparseArray<SmartRentLock> configurations = load(context);
+            int count = 0;
+            int[] appWidgetIds = new int[configurations.size()];
+            for (int i = 0; i < configurations.size(); i++) {
+                if (configurations.valueAt(i).getDeviceId() == deviceId) {
+                    appWidgetIds[count++] = configurations.keyAt(i);
+                }
+            }
+            return Arrays.copyOf(appWidgetIds, count);
         }
     }
 
     // Call this method when a widget is deleted to clean up any associated configuration.
     public static void deleteLockConfiguration(Context context, int appWidgetId) {
-        SharedPreferences.Editor prefs = context.getSharedPreferences(PREFERENCES_NAME, 0).edit();
-        prefs.remove(PREF_PREFIX_KEY_NAME + appWidgetId);
-        prefs.remove(PREF_PREFIX_KEY_ID + appWidgetId);
-        prefs.apply();
+        deleteLockConfigurations(context, new int[]{appWidgetId});
+    }
+
+    public static void deleteLockConfigurations(Context context, int[] appWidgetIds) {
+        synchronized (cacheLock) {
+            SparseArray<SmartRentLock> configurations = load(context);
+            for (int appWidgetId : appWidgetIds) {
+                configurations.remove(appWidgetId);
+                groupCache.remove(appWidgetId);
+            }
+            persist(context);
+        }
+    }
+
+    // Moves configurations to new widget ids, e.g. after a restore from backup.
+    public static void remapLockConfigurations(Context context, int[] oldWidgetIds, int[] newWidgetIds) {
+        synchronized (cacheLock) {
+            SparseArray<SmartRentLock> configurations = load(context);
+            SmartRentLock[] moved = new SmartRentLock[oldWidgetIds.length];
+            SmartRentLock[][] movedGroups = new SmartRentLock[oldWidgetIds.length][];
+            for (int i = 0; i < oldWidgetIds.length; i++) {
+                moved[i] = configurations.get(oldWidgetIds[i]);
+                configurations.remove(oldWidgetIds[i]);
+                movedGroups[i] = groupCache.get(oldWidgetIds[i]);
+                groupCache.remove(oldWidgetIds[i]);
+            }
+            for (int i = 0; i < newWidgetIds.length; i++) {
+                if (moved[i] != null) {
+                    configurations.put(newWidgetIds[i], moved[i]);
+                }
+                if (movedGroups[i] != null) {
+                    groupCache.put(newWidgetIds[i], movedGroups[i]);
+                }
+            }
+            persist(context);
+        }
+    }
+
+    private static SparseArray<SmartRentLock> load(Context context) {
+        if (cache != null) {
+            return cache;
+        }
+        AtomicFile file = getFile(context);
+        groupCache = new SparseArray<>();
+        try (DataInputStream in = new DataInputStream(file.openRead())) {
+            cache = read(in);
+        } catch (FileNotFoundException e) {
+            cache = migratePreferences(context);
+        } catch (IOException e) {
+            AppLog.i(TAG, "load: discarding unreadable configuration: {}", e);
+            cache = new SparseArray<>();
+            groupCache = new SparseArray<>();
+        }
+        return cache;
+    }
+
+    private static SparseArray<SmartRentLock> read(DataInputStream in) throws IOException {
+        int fileVersion = in.readInt();
+        if (fileVersion != FILE_VERSION && fileVersion != FILE_VERSION_SINGLE) {
+            throw new IOException("Unknown configuration version");
+        }
+        int count = in.readInt();
+        SparseArray<SmartRentLock> configurations = new SparseArray<>(count);
+        for (int i = 0; i < count; i++) {
+            int appWidgetId = in.readInt();
+            configurations.put(appWidgetId, readLock(in));
+        }
+        if (fileVersion == FILE_VERSION_SINGLE) {
+            return configurations;
+        }
+        int groupCount = in.readInt();
+        for (int i = 0; i < groupCount; i++) {
+            int appWidgetId = in.readInt();
+            SmartRentLock[] locks = new SmartRentLock[in.readInt()];
+            for (int j = 0; j < locks.length; j++) {
+                locks[j] = readLock(in);
+            }
+            groupCache.put(appWidgetId, locks);
+        }
+        return configurations;
+    }
+
+    private static SmartRentLock readLock(DataInputStream in) throws IOException {
+        int deviceId = in.readInt();
+        String name = in.readUTF();
+        String type = in.readUTF();
+        int hubId = in.readInt();
+        return new SmartRentLock(deviceId, name, type, hubId);
+    }
+
+    private static void writeLock(DataOutputStream out, SmartRentLock lock) throws IOException {
+        out.writeInt(lock.getDeviceId());
+        out.writeUTF(lock.getName());
+        out.writeUTF(lock.getType() == null ? SmartRentLock.TYPE_ENTRY_CONTROL : lock.getType());
+        out.writeInt(lock.getHubId());
+    }
+
+    private static SparseArray<SmartRentLock> migratePreferences(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFERENCES_NAME, 0);
+        SparseArray<SmartRentLock> configurations = new SparseArray<>();
+        for (Map.Entry<String, ?> entry : prefs.getAll().entrySet()) {
+            if (!entry.getKey().startsWith(PREF_PREFIX_KEY_ID) || !(entry.getValue() instanceof Integer)) {
+                continue;
+            }
+            String appWidgetId = entry.getKey().substring(PREF_PREFIX_KEY_ID.length());
+            String name = prefs.getString(PREF_PREFIX_KEY_NAME + appWidgetId, null);
+            int deviceId = (Integer) entry.getValue();
+            if (name != null && deviceId != -1) {
+                try {
+                    configurations.put(Integer.parseInt(appWidgetId), new SmartRentLock(deviceId, name));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        if (configurations.size() > 0) {
+            AppLog.i(TAG, "migratePreferences: migrating {} widgets", configurations.size());
+            // The old entries are only dropped once the file holding them has been written
+            if (write(context, configurations, new SparseArray<>())) {
+                prefs.edit().clear().apply();
+            }
+        }
+        return configurations;
+    }
+
+    // Called with cacheLock held, so writes happen one at a time and in order.
+    private static void persist(Context context) {
+        write(context, cache, groupCache);
+    }
+
+    private static boolean write(Context context, SparseArray<SmartRentLock> configurations,
+                                 SparseArray<SmartRentLock[]> groups) {
+        AtomicFile file = getFile(context);
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(configurations.size());
+            for (int i = 0; i < configurations.size(); i++) {
+                out.writeInt(configurations.keyAt(i));
+                writeLock(out, configurations.valueAt(i));
+            }
+            out.writeInt(groups.size());
+            for (int i = 0; i < groups.size(); i++) {
+                SmartRentLock[] locks = groups.valueAt(i);
+                out.writeInt(groups.keyAt(i));
+                out.writeInt(locks.length);
+                for (SmartRentLock lock : locks) {
+                    writeLock(out, lock);
+                }
+            }
+            out.flush();
+            file.finishWrite(stream);
+            return true;
+        } catch (IOException e) {
+            AppLog.w(TAG, "write: configurations not saved", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+            return false;
+        }
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
     }
 }
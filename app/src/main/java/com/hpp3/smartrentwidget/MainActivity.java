@@ -2,32 +2,109 @@ package com.hpp3.smartrentwidget;
 
 import android.appwidget.AppWidgetManager;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.TextView;
 
+import org.json.JSONException;
+
+import java.util.Map;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 import androidx.appcompat.app.AppCompatActivity;
 
 public class MainActivity extends AppCompatActivity {
-    private final Executor executor = Executors.newSingleThreadExecutor();
+    private static final String[] LOG_LEVEL_NAMES = {"VERBOSE", "DEBUG", "INFO", "WARN", "ERROR", "ASSERT"};
+    private TextView metricsTextView;
+    private Executor executor;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        executor = SmartRentApplication.getDispatcher(this);
+        metricsTextView = findViewById(R.id.metricsTextView);
+        Button exportMetricsButton = findViewById(R.id.exportMetricsButton);
+        exportMetricsButton.setOnClickListener(view -> exportMetrics());
+        Button dumpLogButton = findViewById(R.id.dumpLogButton);
+        dumpLogButton.setOnClickListener(view -> dumpLog());
+        Button logLevelButton = findViewById(R.id.logLevelButton);
+        showLogLevel(logLevelButton);
+        logLevelButton.setOnClickListener(view -> {
+            // Steps up to errors only, then back down to the most this build logs
+            AppLog.setLevel(AppLog.getLevel() >= Log.ERROR ? BuildConfig.LOG_LEVEL : AppLog.getLevel() + 1);
+            showLogLevel(logLevelButton);
+        });
+        CheckBox hedgingCheckBox = findViewById(R.id.hedgingCheckBox);
+        Context context = getApplicationContext();
+        executor.execute(() -> {
+            boolean hedgingEnabled = SmartRentClient.getInstance(context).isHedgingEnabled();
+            runOnUiThread(() -> {
+                hedgingCheckBox.setChecked(hedgingEnabled);
+                hedgingCheckBox.setOnCheckedChangeListener((view, checked) ->
+                        executor.execute(() -> SmartRentClient.getInstance(context).setHedgingEnabled(checked)));
+            });
+        });
+    }
+
+    private void showMetrics() {
+        Metrics metrics = Metrics.getInstance(this);
+        executor.execute(() -> {
+            StringBuilder text = new StringBuilder(metrics.summarizeLatencies());
+            for (Map.Entry<String, Long> counter : metrics.getCounters().entrySet()) {
+                text.append(counter.getKey()).append(" = ").append(counter.getValue()).append('\n');
+            }
+            for (Map.Entry<String, Long> gauge : metrics.getGauges().entrySet()) {
+                text.append(gauge.getKey()).append(" = ").append(gauge.getValue()).append('\n');
+            }
+            runOnUiThread(() -> metricsTextView.setText(text));
+        });
+    }
+
+    private void exportMetrics() {
+        Metrics metrics = Metrics.getInstance(this);
+        executor.execute(() -> {
+            try {
+                Intent send = new Intent(Intent.ACTION_SEND);
+                send.setType("application/json");
+                send.putExtra(Intent.EXTRA_SUBJECT, "SmartRentWidget metrics");
+                send.putExtra(Intent.EXTRA_TEXT, metrics.toJson());
+                runOnUiThread(() -> startActivity(Intent.createChooser(send, "Export metrics")));
+            } catch (JSONException e) {
+                AppLog.i("MainActivity", "exportMetrics: {}", e.getMessage());
+            }
+        });
+    }
+
+    private static void showLogLevel(Button button) {
+        button.setText("Log level: " + LOG_LEVEL_NAMES[AppLog.getLevel() - Log.VERBOSE]);
+    }
+
+    // Shows the recent log events kept in memory and offers to share them.
+    private void dumpLog() {
+        String log = AppLog.dump();
+        metricsTextView.setText(log.isEmpty() ? "Nothing logged yet." : log);
+        Intent send = new Intent(Intent.ACTION_SEND);
+        send.setType("text/plain");
+        send.putExtra(Intent.EXTRA_SUBJECT, "SmartRentWidget log");
+        send.putExtra(Intent.EXTRA_TEXT, log);
+        startActivity(Intent.createChooser(send, "Export log"));
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        Log.i("MainActivity", "onResume: called");
+        AppLog.i("MainActivity", "onResume: called");
         int[] appWidgetIds = AppWidgetManager.getInstance(this).getAppWidgetIds(new ComponentName(this, WidgetClickedReceiver.class));
+        // Redraws the widgets, and onUpdate prewarms the connection for them
         Intent intent = new Intent(this, WidgetClickedReceiver.class);
         intent.setAction(AppWidgetManager.ACTION_APPWIDGET_UPDATE);
         intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, appWidgetIds);
         sendBroadcast(intent);
+        showMetrics();
     }
 }
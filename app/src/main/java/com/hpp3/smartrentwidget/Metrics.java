@@ -0,0 +1,230 @@
+package com.hpp3.smartrentwidget;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+/**
+ * Persistent counters and latency histograms for diagnosing the widget in the field. Both survive
+ * process death and are shown in {@link MainActivity}.
+ * <p>
+ * Recording only updates memory; whatever changed is written out in a single edit on the app's
+ * dispatcher, so a burst such as the phases of a tap costs one write, and none on the caller's thread.
+ */
+public class Metrics {
+    public static final String TAP_CONNECTION_WARM = "tap_connection_warm";
+    public static final String TAP_CONNECTION_CONNECTING = "tap_connection_connecting";
+    public static final String TAP_CONNECTION_COLD = "tap_connection_cold";
+    public static final String PREWARM_REQUESTED = "prewarm_requested";
+    public static final String COMMAND_TIMEOUTS = "command_timeouts";
+    public static final String AUTH_LOGINS = "auth_logins";
+    public static final String AUTH_REFRESHES = "auth_refreshes";
+    public static final String AUTH_SHARED_WAITS = "auth_shared_waits";
+    public static final String CIRCUIT_OPENED = "circuit_opened";
+    public static final String CIRCUIT_HALF_OPENED = "circuit_half_opened";
+    public static final String CIRCUIT_CLOSED = "circuit_closed";
+    public static final String CIRCUIT_REJECTED = "circuit_rejected";
+
+    private static final String PREFERENCES_NAME = "SmartRentMetrics";
+    private static final String HISTOGRAM_PREFIX = "histogram_";
+    private static volatile Metrics instance;
+    private final SharedPreferences preferences;
+    private final Map<String, LatencyHistogram> histograms = new HashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Executor writer;
+    // Guarded by histograms
+    private final Set<String> unwrittenHistograms = new HashSet<>();
+    // Counter values not written yet; guards writeScheduled as well
+    private final Map<String, Long> unwrittenCounters = new HashMap<>();
+    private boolean writeScheduled;
+    private final Object writeLock = new Object();
+
+    private Metrics(Context context) {
+        preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, 0);
+        writer = SmartRentApplication.getDispatcher(context);
+    }
+
+    public static Metrics getInstance(Context context) {
+        if (instance == null) {
+            synchronized (Metrics.class) {
+                if (instance == null) {
+                    instance = new Metrics(context);
+                }
+            }
+        }
+        return instance;
+    }
+
+    public void increment(String counter) {
+        synchronized (unwrittenCounters) {
+            unwrittenCounters.put(counter, getCounterLocked(counter) + 1);
+        }
+        scheduleWrite();
+    }
+
+    public void recordLatency(String name, long millis) {
+        synchronized (histograms) {
+            getHistogramLocked(name).record(millis);
+            unwrittenHistograms.add(name);
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Records {@code millis[i]} into histogram {@code names[i]} for each i, all in one write.
+     */
+    public void recordLatencies(String[] names, long[] millis) {
+        synchronized (histograms) {
+            for (int i = 0; i < names.length; i++) {
+                getHistogramLocked(names[i]).record(millis[i]);
+                unwrittenHistograms.add(names[i]);
+            }
+        }
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        synchronized (unwrittenCounters) {
+            if (writeScheduled) {
+                return;
+            }
+            writeScheduled = true;
+        }
+        writer.execute(this::write);
+    }
+
+    // Writes out everything recorded so far in a single edit.
+    private void write() {
+        synchronized (writeLock) {
+            synchronized (unwrittenCounters) {
+                // Anything recorded from here on schedules the next write
+                writeScheduled = false;
+            }
+            SharedPreferences.Editor editor = preferences.edit();
+            synchronized (histograms) {
+                for (String name : unwrittenHistograms) {
+                    editor.putString(HISTOGRAM_PREFIX + name, histograms.get(name).serialize());
+                }
+                unwrittenHistograms.clear();
+            }
+            synchronized (unwrittenCounters) {
+                for (Map.Entry<String, Long> counter : unwrittenCounters.entrySet()) {
+                    editor.putLong(counter.getKey(), counter.getValue());
+                }
+                unwrittenCounters.clear();
+                // Still holding the lock, so counters never read a value older than the one applied
+                editor.apply();
+            }
+        }
+    }
+
+    private long getCounterLocked(String counter) {
+        Long unwritten = unwrittenCounters.get(counter);
+        return unwritten != null ? unwritten : preferences.getLong(counter, 0);
+    }
+
+    private LatencyHistogram getHistogramLocked(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = LatencyHistogram.deserialize(preferences.getString(HISTOGRAM_PREFIX + name, null));
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns one line per histogram with its sample count and p50/p95/p99 in ms.
+     */
+    public String summarizeLatencies() {
+        StringBuilder summary = new StringBuilder();
+        synchronized (histograms) {
+            for (String name : getHistogramNames()) {
+                LatencyHistogram histogram = getHistogramLocked(name);
+                summary.append(String.format(Locale.US, "%s n=%d p50=%dms p95=%dms p99=%dms%n", name,
+                        histogram.getTotal(), histogram.percentile(50), histogram.percentile(95), histogram.percentile(99)));
+            }
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Exports every counter and histogram so runs of different releases can be compared.
+     */
+    public String toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("version", BuildConfig.VERSION_NAME);
+        json.put("exported_at", System.currentTimeMillis());
+        JSONObject counters = new JSONObject();
+        for (Map.Entry<String, Long> counter : getCounters().entrySet()) {
+            counters.put(counter.getKey(), counter.getValue());
+        }
+        json.put("counters", counters);
+        json.put("gauges", new JSONObject(getGauges()));
+        JSONObject latencies = new JSONObject();
+        synchronized (histograms) {
+            for (String name : getHistogramNames()) {
+                latencies.put(name, getHistogramLocked(name).toJson());
+            }
+        }
+        json.put("latencies", latencies);
+        return json.toString(2);
+    }
+
+    private TreeSet<String> getHistogramNames() {
+        TreeSet<String> names = new TreeSet<>(histograms.keySet());
+        for (String key : preferences.getAll().keySet()) {
+            if (key.startsWith(HISTOGRAM_PREFIX)) {
+                names.add(key.substring(HISTOGRAM_PREFIX.length()));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Registers a live value, such as a queue depth, that is read whenever metrics are shown or
+     * exported. Gauges are not persisted.
+     */
+    public void registerGauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public Map<String, Long> getGauges() {
+        TreeMap<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    public long getCounter(String counter) {
+        synchronized (unwrittenCounters) {
+            return getCounterLocked(counter);
+        }
+    }
+
+    public Map<String, Long> getCounters() {
+        TreeMap<String, Long> counters = new TreeMap<>();
+        synchronized (unwrittenCounters) {
+            for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+                if (entry.getValue() instanceof Long) {
+                    counters.put(entry.getKey(), (Long) entry.getValue());
+                }
+            }
+            counters.putAll(unwrittenCounters);
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,16 @@
+package com.hpp3.smartrentwidget;
+
+/**
+ * Whether the device can currently reach the network, and when it can again.
+ */
+interface NetworkState {
+
+    interface Listener {
+        // Called, on any thread, when connectivity comes back after having been lost
+        void onOnline();
+    }
+
+    boolean isOnline();
+
+    void addListener(Listener listener);
+}
@@ -0,0 +1,380 @@
+package com.hpp3.smartrentwidget;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps lock commands alive through a lost connection, a failing backend or the process dying.
+ * <p>
+ * Every command is appended to a journal file as it is submitted and is only dropped from it once
+ * it has been confirmed or its {@link Deadline} has passed. The journal is written on a thread of
+ * its own, in order, so neither callers nor the socket thread reporting an outcome wait on the disk. Failed sends are retried with
+ * exponential backoff and jitter; while the device is offline commands are not attempted at all and
+ * are sent as soon as connectivity returns. A command past its deadline, such as an unlock nobody
+ * is waiting at the door for anymore, is cancelled and never sent again.
+ * <p>
+ * At most one command per device attribute is pending. Asking again for the value that is
+ * already pending, e.g. mashing the widget, shares that command and its outcome without
+ * journaling anything; asking for a different value supersedes it, and whoever was waiting on
+ * the old value is told the outcome of the new one, so an old value is never retried over a
+ * newer one.
+ */
+final class OfflineCommandQueue {
+    private static final String TAG = "OfflineCommandQueue";
+    private static final long MIN_RETRY_DELAY_MS = 1_000;
+    private static final long MAX_RETRY_DELAY_MS = 60_000;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_DONE = 2;
+
+    private static class Command {
+        final long id;
+        final int deviceId;
+        final String attributeName;
+        final String value;
+        final long expiresAt;
+        final Deadline deadline;
+        final TapTrace trace;
+        final List<Runnable> successes = new ArrayList<>();
+        final List<Runnable> failures = new ArrayList<>();
+        int attempts;
+        boolean finished;
+        ScheduledFuture<?> expiry;
+
+        Command(long id, int deviceId, String attributeName, String value, long expiresAt, Deadline deadline,
+                TapTrace trace) {
+            this.id = id;
+            this.deviceId = deviceId;
+            this.attributeName = attributeName;
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.deadline = deadline;
+            this.trace = trace;
+        }
+
+        boolean isFor(int deviceId, String attributeName) {
+            return this.deviceId == deviceId && this.attributeName.equals(attributeName);
+        }
+
+        void attach(Runnable success, Runnable failure) {
+            successes.add(success);
+            failures.add(failure);
+        }
+    }
+
+    private final File file;
+    private final NetworkState networkState;
+    private final ScheduledExecutorService timers;
+    private final Executor worker;
+    private final Executor journalWriter;
+    private final CommandCoalescer.Sender sender;
+    private final Random random = new Random();
+    private final Map<Long, Command> pending = new LinkedHashMap<>();
+    private final List<Command> waitingForNetwork = new ArrayList<>();
+    private long nextId;
+    // Only used on journalWriter
+    private DataOutputStream journal;
+
+    /**
+     * Expiries and retry delays run on {@code timers}, which must never block; attempts, which may
+     * have to wait for a token, run on {@code worker}. {@code journalWriter} must run its tasks one
+     * at a time, in order.
+     */
+    OfflineCommandQueue(File file, NetworkState networkState, ScheduledExecutorService timers, Executor worker,
+                        Executor journalWriter, CommandCoalescer.Sender sender) {
+        this.file = file;
+        this.networkState = networkState;
+        this.timers = timers;
+        this.worker = worker;
+        this.journalWriter = journalWriter;
+        this.sender = sender;
+        synchronized (this) {
+            load();
+        }
+        networkState.addListener(this::onOnline);
+    }
+
+    /**
+     * Sends the commands a previous process journaled but never finished, unless they expired.
+     * Nobody is waiting on their outcome anymore.
+     */
+    void replay() {
+        List<Command> replayed;
+        synchronized (this) {
+            replayed = new ArrayList<>(pending.values());
+        }
+        if (!replayed.isEmpty()) {
+            AppLog.i(TAG, "replay: resending {} journaled commands", replayed.size());
+        }
+        for (Command command : replayed) {
+            scheduleExpiry(command);
+            worker.execute(() -> attempt(command));
+        }
+    }
+
+    /**
+     * Journals the command and sends it until it is confirmed, or {@code deadline} passes.
+     * Exactly one of {@code success} or {@code failure} is run.
+     */
+    void submit(int deviceId, String attributeName, String value, Deadline deadline, TapTrace trace,
+                Runnable success, Runnable failure) {
+        Command command;
+        synchronized (this) {
+            Command previous = pendingFor(deviceId, attributeName);
+            if (previous != null && previous.value.equals(value)) {
+                AppLog.d(TAG, "submit: joining pending command {}", previous.id);
+                previous.attach(success, failure);
+                return;
+            }
+            command = new Command(nextId++, deviceId, attributeName, value,
+                    System.currentTimeMillis() + deadline.remainingMs(), deadline, trace);
+            if (previous != null) {
+                AppLog.i(TAG, "submit: command {} supersedes {}", command.id, previous.id);
+                command.successes.addAll(previous.successes);
+                command.failures.addAll(previous.failures);
+                retire(previous);
+            }
+            command.attach(success, failure);
+            pending.put(command.id, command);
+            append(command);
+        }
+        scheduleExpiry(command);
+        attempt(command);
+    }
+
+    private Command pendingFor(int deviceId, String attributeName) {
+        for (Command command : pending.values()) {
+            if (command.isFor(deviceId, attributeName)) {
+                return command;
+            }
+        }
+        return null;
+    }
+
+    private void scheduleExpiry(Command command) {
+        long delay = command.deadline.remainingMs();
+        ScheduledFuture<?> expiry = timers.schedule(() -> expire(command), delay, TimeUnit.MILLISECONDS);
+        synchronized (this) {
+            command.expiry = expiry;
+        }
+    }
+
+    private void attempt(Command command) {
+        synchronized (this) {
+            if (command.finished) {
+                return;
+            }
+            if (!networkState.isOnline()) {
+                AppLog.i(TAG, "attempt: offline, holding command {}", command.id);
+                waitingForNetwork.add(command);
+                return;
+            }
+            command.attempts++;
+        }
+        // Only the first attempt belongs to the tap that is being timed
+        sender.send(command.deviceId, command.attributeName, command.value,
+                command.attempts == 1 ? command.trace : null, command.deadline,
+                () -> finish(command, true),
+                () -> retry(command));
+    }
+
+    private void retry(Command command) {
+        long delay = Math.min(MAX_RETRY_DELAY_MS, MIN_RETRY_DELAY_MS << Math.min(command.attempts - 1, 16));
+        // Half of the delay is fixed, the other half random, so clients that failed together spread out
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        if (delay >= command.deadline.remainingMs()) {
+            AppLog.i(TAG, "retry: command {} expires before its next attempt", command.id);
+            finish(command, false);
+            return;
+        }
+        AppLog.i(TAG, "retry: command {} in {}ms", command.id, delay);
+        timers.schedule(() -> worker.execute(() -> attempt(command)), delay, TimeUnit.MILLISECONDS);
+    }
+
+    // The socket gives up on an attempt in flight at the same deadline.
+    private void expire(Command command) {
+        synchronized (this) {
+            if (command.finished) {
+                return;
+            }
+        }
+        AppLog.i(TAG, "expire: cancelling command {} past its deadline", command.id);
+        finish(command, false);
+    }
+
+    private void onOnline() {
+        List<Command> drained;
+        synchronized (this) {
+            drained = new ArrayList<>(waitingForNetwork);
+            waitingForNetwork.clear();
+        }
+        for (Command command : drained) {
+            worker.execute(() -> attempt(command));
+        }
+    }
+
+    private void finish(Command command, boolean succeeded) {
+        synchronized (this) {
+            if (command.finished) {
+                return;
+            }
+            retire(command);
+        }
+        for (Runnable callback : succeeded ? command.successes : command.failures) {
+            callback.run();
+        }
+    }
+
+    // Stops the command from being attempted again and drops it from the journal, with the lock held.
+    private void retire(Command command) {
+        command.finished = true;
+        if (command.expiry != null) {
+            command.expiry.cancel(false);
+        }
+        pending.remove(command.id);
+        waitingForNetwork.remove(command);
+        appendDone(command.id);
+    }
+
+    // Journal. Called with the lock held; only load() reads the file there, everything that writes
+    // it is handed to journalWriter.
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        Map<Long, Command> records = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte type = in.readByte();
+                long id = in.readLong();
+                nextId = Math.max(nextId, id + 1);
+                if (type == RECORD_ADD) {
+                    int deviceId = in.readInt();
+                    String attributeName = in.readUTF();
+                    String value = in.readUTF();
+                    long expiresAt = in.readLong();
+                    // A later command for the same device attribute superseded any earlier one
+                    records.values().removeIf(command -> command.isFor(deviceId, attributeName));
+                    records.put(id, new Command(id, deviceId, attributeName, value, expiresAt,
+                            Deadline.after(expiresAt - System.currentTimeMillis()), null));
+                } else if (type == RECORD_DONE) {
+                    records.remove(id);
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // End of the journal, or a record the process died while writing
+        } catch (IOException e) {
+            AppLog.i(TAG, "load: journal unreadable past this point: {}", e);
+        }
+        long now = System.currentTimeMillis();
+        for (Command command : records.values()) {
+            if (command.expiresAt > now) {
+                pending.put(command.id, command);
+            }
+        }
+        List<Command> survivors = new ArrayList<>(pending.values());
+        journalWriter.execute(() -> compact(survivors));
+    }
+
+    // Rewrites the journal with only the given commands, or removes it if there are none.
+    private void compact(List<Command> survivors) {
+        closeJournal();
+        if (survivors.isEmpty()) {
+            if (file.exists() && !file.delete()) {
+                AppLog.i(TAG, "compact: could not delete {}", file);
+            }
+            return;
+        }
+        File compacted = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)))) {
+            for (Command command : survivors) {
+                writeAdd(out, command);
+            }
+        } catch (IOException e) {
+            AppLog.w(TAG, "compact: journal not rewritten", e);
+            return;
+        }
+        if (!compacted.renameTo(file)) {
+            AppLog.i(TAG, "compact: could not replace {}", file);
+        }
+    }
+
+    private void append(Command command) {
+        journalWriter.execute(() -> {
+            try {
+                writeAdd(journal(), command);
+                journal.flush();
+            } catch (IOException e) {
+                // The command still goes out, it just won't survive the process
+                AppLog.w(TAG, "append: command not journaled", e);
+                closeJournal();
+            }
+        });
+    }
+
+    private void appendDone(long id) {
+        if (pending.isEmpty()) {
+            // Nothing left to recover, start the next journal from scratch
+            journalWriter.execute(() -> compact(Collections.emptyList()));
+            return;
+        }
+        journalWriter.execute(() -> {
+            try {
+                DataOutputStream out = journal();
+                out.writeByte(RECORD_DONE);
+                out.writeLong(id);
+                out.flush();
+            } catch (IOException e) {
+                AppLog.w(TAG, "appendDone: completion not journaled", e);
+                closeJournal();
+            }
+        });
+    }
+
+    private static void writeAdd(DataOutputStream out, Command command) throws IOException {
+        out.writeByte(RECORD_ADD);
+        out.writeLong(command.id);
+        out.writeInt(command.deviceId);
+        out.writeUTF(command.attributeName);
+        out.writeUTF(command.value);
+        out.writeLong(command.expiresAt);
+    }
+
+    // Records go straight to the kernel on flush, which is enough to survive the process being killed.
+    private DataOutputStream journal() throws IOException {
+        if (journal == null) {
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        return journal;
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                AppLog.i(TAG, "closeJournal: {}", e);
+            }
+            journal = null;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.hpp3.smartrentwidget;
+
+import java.util.Locale;
+
+/**
+ * Encoder/decoder for Phoenix v2 serializer frames: {@code [join_ref, ref, topic, event, payload]}.
+ * <p>
+ * Outgoing frames are appended into a single {@link StringBuilder}. Incoming frames are scanned
+ * once into a reusable {@code PhoenixFrame}; the well-known events are matched in place so they
+ * never allocate, and the payload is only located, not parsed, apart from its top-level
+ * {@code "status"}.
+ */
+final class PhoenixFrame {
+    static final String EVENT_JOIN = "phx_join";
+    static final String EVENT_REPLY = "phx_reply";
+    static final String EVENT_ERROR = "phx_error";
+    static final String EVENT_CLOSE = "phx_close";
+    static final String EVENT_HEARTBEAT = "heartbeat";
+    static final String EVENT_UPDATE_ATTRIBUTES = "update_attributes";
+    static final String EVENT_ATTRIBUTE_STATE = "attribute_state";
+    static final String TOPIC_PHOENIX = "phoenix";
+    static final String TOPIC_DEVICES_PREFIX = "devices:";
+
+    private static final String[] KNOWN_EVENTS = {
+            EVENT_REPLY, EVENT_ERROR, EVENT_CLOSE, EVENT_JOIN, EVENT_HEARTBEAT, EVENT_UPDATE_ATTRIBUTES,
+            EVENT_ATTRIBUTE_STATE,
+    };
+    private static final String STATUS_KEY = "status";
+    private static final String STATUS_OK = "ok";
+
+    /**
+     * Encodes an outgoing frame once the socket has assigned its refs.
+     */
+    interface Encoder {
+        String encode(String joinRef, String ref);
+    }
+
+    String joinRef;
+    String ref;
+    String topic;
+    String event;
+    String status;
+    String text;
+    int payloadStart;
+    int payloadEnd;
+
+    // Decoding
+
+    /**
+     * Decodes {@code message} into this frame, replacing whatever it held. Returns false, leaving
+     * the fields unspecified, if the message is not a five element Phoenix frame.
+     */
+    boolean decode(String message) {
+        text = message;
+        status = null;
+        payloadStart = payloadEnd = -1;
+        try {
+            int i = expect(message, skipWhitespace(message, 0), '[');
+            i = readElement(message, i, 0);
+            i = readElement(message, i, 1);
+            i = readElement(message, i, 2);
+            i = readElement(message, i, 3);
+            if (topic == null || event == null) {
+                return false;
+            }
+            payloadStart = skipWhitespace(message, i);
+            payloadEnd = scanPayload(message, payloadStart);
+            i = skipWhitespace(message, payloadEnd);
+            return i < message.length() && message.charAt(i) == ']';
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    boolean isReply() {
+        return EVENT_REPLY.equals(event);
+    }
+
+    boolean isOk() {
+        return STATUS_OK.equals(status);
+    }
+
+    boolean isDevicesTopic() {
+        return topic != null && topic.startsWith(TOPIC_DEVICES_PREFIX);
+    }
+
+    /**
+     * The raw JSON text of the payload element, or null if nothing has been decoded.
+     */
+    String payload() {
+        return payloadStart < 0 ? null : text.substring(payloadStart, payloadEnd);
+    }
+
+    private int readElement(String s, int i, int index) {
+        i = skipWhitespace(s, i);
+        String value;
+        if (s.startsWith("null", i)) {
+            value = null;
+            i += 4;
+        } else {
+            int end = endOfString(s, i);
+            value = index == 3 ? knownEvent(s, i + 1, end - 1) : unescape(s, i + 1, end - 1);
+            i = end;
+        }
+        switch (index) {
+            case 0:
+                joinRef = value;
+                break;
+            case 1:
+                ref = value;
+                break;
+            case 2:
+                topic = value;
+                break;
+            default:
+                event = value;
+        }
+        return expect(s, skipWhitespace(s, i), ',');
+    }
+
+    // Finds the end of the payload value, picking up its top-level "status" along the way.
+    private int scanPayload(String s, int start) {
+        char first = s.charAt(start);
+        if (first != '{' && first != '[') {
+            int i = start;
+            while (i < s.length() && s.charAt(i) != ']' && !Character.isWhitespace(s.charAt(i))) {
+                i = s.charAt(i) == '"' ? endOfString(s, i) : i + 1;
+            }
+            return i;
+        }
+        int depth = 0;
+        int i = start;
+        boolean expectingKey = false;
+        while (true) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                int end = endOfString(s, i);
+                if (depth == 1 && first == '{' && expectingKey
+                        && end - i - 2 == STATUS_KEY.length() && s.startsWith(STATUS_KEY, i + 1)) {
+                    int value = skipWhitespace(s, expect(s, skipWhitespace(s, end), ':'));
+                    if (s.charAt(value) == '"') {
+                        int valueEnd = endOfString(s, value);
+                        status = STATUS_OK.length() == valueEnd - value - 2 && s.startsWith(STATUS_OK, value + 1)
+                                ? STATUS_OK : unescape(s, value + 1, valueEnd - 1);
+                        end = valueEnd;
+                    } else {
+                        end = value;
+                    }
+                }
+                expectingKey = false;
+                i = end;
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+                expectingKey = c == '{';
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            } else if (c == ',') {
+                expectingKey = depth == 1 && first == '{';
+            }
+            i++;
+        }
+    }
+
+    private static String knownEvent(String s, int start, int end) {
+        int length = end - start;
+        for (String known : KNOWN_EVENTS) {
+            if (known.length() == length && s.startsWith(known, start)) {
+                return known;
+            }
+        }
+        return unescape(s, start, end);
+    }
+
+    private static int endOfString(String s, int i) {
+        if (s.charAt(i) != '"') {
+            throw new IllegalArgumentException("Expected string at " + i);
+        }
+        i++;
+        while (true) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '"') {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private static String unescape(String s, int start, int end) {
+        int escape = s.indexOf('\\', start);
+        if (escape < 0 || escape >= end) {
+            return s.substring(start, end);
+        }
+        StringBuilder out = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+            char escaped = s.charAt(++i);
+            switch (escaped) {
+                case 'n':
+                    out.append('\n');
+                    break;
+                case 't':
+                    out.append('\t');
+                    break;
+                case 'r':
+                    out.append('\r');
+                    break;
+                case 'b':
+                    out.append('\b');
+                    break;
+                case 'f':
+                    out.append('\f');
+                    break;
+                case 'u':
+                    out.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default:
+                    out.append(escaped);
+            }
+        }
+        return out.toString();
+    }
+
+    private static int skipWhitespace(String s, int i) {
+        while (i < s.length() && Character.isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int expect(String s, int i, char c) {
+        if (s.charAt(i) != c) {
+            throw new IllegalArgumentException("Expected '" + c + "' at " + i);
+        }
+        return i + 1;
+    }
+
+    // Encoding
+
+    static String encode(String joinRef, String ref, String topic, String event, String payloadJson) {
+        StringBuilder out = new StringBuilder(32 + topic.length() + event.length() + payloadJson.length());
+        out.append('[');
+        appendNullableString(out, joinRef).append(',');
+        appendNullableString(out, ref).append(',');
+        appendString(out, topic).append(',');
+        appendString(out, event).append(',');
+        return out.append(payloadJson).append(']').toString();
+    }
+
+    static String devicesTopic(int deviceId) {
+        return TOPIC_DEVICES_PREFIX + deviceId;
+    }
+
+    static String join(String ref, String topic) {
+        return encode(ref, ref, topic, EVENT_JOIN, "{}");
+    }
+
+    static String heartbeat(String ref) {
+        return encode(null, ref, TOPIC_PHOENIX, EVENT_HEARTBEAT, "{}");
+    }
+
+    static String updateAttribute(String joinRef, String ref, int deviceId, String name, String value) {
+        StringBuilder payload = new StringBuilder(64 + name.length() + value.length());
+        payload.append("{\"device_id\":").append(deviceId).append(",\"attributes\":[{\"name\":");
+        appendString(payload, name).append(",\"value\":");
+        appendString(payload, value).append("}]}");
+        return encode(joinRef, ref, devicesTopic(deviceId), EVENT_UPDATE_ATTRIBUTES, payload.toString());
+    }
+
+    private static StringBuilder appendNullableString(StringBuilder out, String value) {
+        return value == null ? out.append("null") : appendString(out, value);
+    }
+
+    static StringBuilder appendString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.append('"');
+    }
+}
@@ -0,0 +1,745 @@
+package com.hpp3.smartrentwidget;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+/**
+ * Long-lived Phoenix channel connection shared by every lock command.
+ * <p>
+ * The socket is opened on the first command and kept alive with Phoenix heartbeats until it has
+ * been idle for {@link #IDLE_TIMEOUT_MS}, or longer if it was pre-warmed. Topics that were joined once stay joined for the lifetime
+ * of the connection, so a warm command costs a single push/reply round trip. Every join and push
+ * carries its own ref and is matched to the {@code phx_reply} with that ref, so any number of
+ * commands, to any number of topics, can be in flight at once; commands on a topic that is still
+ * being joined are pushed as soon as the join is answered. A command that is still waiting when
+ * its {@link Deadline} passes fails on its own. Only if nothing at all has been received since it
+ * went out is the connection presumed stuck and cancelled.
+ * <p>
+ * When a command with a deadline (a user waiting on it, as opposed to a warm-up or subscription)
+ * has to open the connection and it takes longer than the 90th percentile of past connects, a
+ * second attempt is started alongside it. Whichever opens first becomes the connection and the
+ * other is cancelled. Nothing is sent before a connection has won, so a command can only ever go
+ * out on one of them. A losing first attempt counts towards the percentile with the time it had
+ * taken so far. Hedging can be switched off with {@link #setHedgingEnabled}.
+ * <p>
+ * Topics can also be subscribed to, in which case they are rejoined after every reconnect, the
+ * connection is not closed for being idle, and whatever the server pushes on them is handed to
+ * the {@link PushListener}.
+ */
+class PhoenixSocket extends WebSocketListener {
+    private static final String TAG = "PhoenixSocket";
+    private static final long HEARTBEAT_INTERVAL_MS = 30_000;
+    private static final long IDLE_TIMEOUT_MS = 5 * 60_000;
+    private static final long MIN_BACKOFF_MS = 1_000;
+    private static final long MAX_BACKOFF_MS = 30_000;
+    private static final int MAX_RECONNECT_ATTEMPTS = 5;
+    private static final long DEFAULT_HEDGE_DELAY_MS = 1_000;
+    private static final long MIN_HEDGE_DELAY_MS = 250;
+    private static final long MAX_HEDGE_DELAY_MS = 3_000;
+    private static final int MIN_HEDGE_SAMPLES = 10;
+    private static final double HEDGE_PERCENTILE = 90;
+    private static final Runnable NOTHING = () -> {
+    };
+
+    enum State {
+        CLOSED, CONNECTING, OPEN
+    }
+
+    interface Handshake {
+        String getUrl();
+
+        // Called on a socket thread when the server refused the handshake to url as unauthorized; must not block
+        void onRejected(String url);
+    }
+
+    interface PushListener {
+        // Called on a socket thread for every frame the server pushes on a devices topic
+        void onPush(String topic, String event, String payload);
+
+        // Called on a socket thread when an open connection went away; nothing is pushed until topics are rejoined
+        void onPushesStopped();
+    }
+
+    private static class Command {
+        final String topic;
+        // Null for a command that only joins its topic
+        final PhoenixFrame.Encoder payload;
+        final Runnable success;
+        final Runnable failure;
+        final Runnable unauthorized;
+        final TapTrace trace;
+        final Deadline deadline;
+        String ref;
+        long sentAt;
+
+        Command(String topic, PhoenixFrame.Encoder payload, TapTrace trace, Deadline deadline,
+                Runnable success, Runnable failure, Runnable unauthorized) {
+            this.topic = topic;
+            this.payload = payload;
+            this.trace = trace;
+            this.deadline = deadline;
+            this.success = success;
+            this.failure = failure;
+            this.unauthorized = unauthorized;
+        }
+    }
+
+    private final OkHttpClient httpClient;
+    private final Handshake handshake;
+    private final PushListener pushListener;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // Commands waiting for the connection to open
+    private final ArrayDeque<Command> queue = new ArrayDeque<>();
+    // Joined topic -> the ref of its join, which pushes on it carry as their join ref
+    private final Map<String, String> joinedTopics = new HashMap<>();
+    // Topic being joined -> the commands waiting on its join reply
+    private final Map<String, List<Command>> joiningTopics = new HashMap<>();
+    // Ref of an unanswered join -> its topic
+    private final Map<String, String> joins = new HashMap<>();
+    // Ref of an unanswered push -> its command
+    private final Map<String, Command> pushes = new HashMap<>();
+    private final Set<String> subscriptions = new LinkedHashSet<>();
+    private final PhoenixFrame frame = new PhoenixFrame();
+
+    private WebSocket webSocket;
+    private boolean open;
+    private int reconnectAttempts;
+    private long idleDeadline;
+    private long lastReceivedAt;
+    private int ref;
+    private String pendingHeartbeat;
+    private ScheduledFuture<?> heartbeatTask;
+    private ScheduledFuture<?> reconnectTask;
+    private boolean hedgingEnabled = true;
+    private final LatencyHistogram connectTimes = new LatencyHistogram();
+    private long connectStartedAt;
+    private WebSocket hedgeSocket;
+    private long hedgeStartedAt;
+    private ScheduledFuture<?> hedgeTask;
+
+    PhoenixSocket(OkHttpClient httpClient, Handshake handshake, PushListener pushListener) {
+        this.httpClient = httpClient;
+        this.handshake = handshake;
+        this.pushListener = pushListener;
+    }
+
+    /**
+     * Pushes the frame {@code payload} encodes on {@code topic}, joining the topic first if this
+     * connection has not joined it yet. Exactly one of {@code success}, {@code failure} or
+     * {@code unauthorized} is run, the latter if the join or push was refused as unauthorized,
+     * on a socket thread. The socket, join and reply phases are marked on {@code trace} if it is
+     * not null. Without a {@code deadline} the command waits as long as the connection keeps trying.
+     */
+    void send(String topic, PhoenixFrame.Encoder payload, TapTrace trace, Deadline deadline,
+              Runnable success, Runnable failure, Runnable unauthorized) {
+        if (deadline != null && deadline.isExpired()) {
+            runOutside(failure);
+            return;
+        }
+        Command command = new Command(topic, payload, trace, deadline, success, failure, unauthorized);
+        synchronized (this) {
+            touch(IDLE_TIMEOUT_MS);
+            enqueue(command);
+        }
+        if (deadline != null) {
+            scheduler.schedule(() -> expire(command), deadline.remainingMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void expire(Command command) {
+        Runnable failed = null;
+        synchronized (this) {
+            if (queue.remove(command)) {
+                AppLog.i(TAG, "expire: dropping queued command for {}", command.topic);
+                failed = command.failure;
+                if (!open && webSocket != null && queue.isEmpty() && subscriptions.isEmpty()) {
+                    // Nobody is waiting for this connection anymore
+                    cancelHedge();
+                    webSocket.cancel();
+                }
+            } else if (removeInFlight(command)) {
+                failed = command.failure;
+                if (lastReceivedAt < command.sentAt) {
+                    AppLog.i(TAG, "expire: nothing received since {} went out, cancelling connection", command.topic);
+                    webSocket.cancel();
+                } else {
+                    AppLog.i(TAG, "expire: no reply on {}", command.topic);
+                }
+            }
+        }
+        if (failed != null) {
+            failed.run();
+        }
+    }
+
+    // Takes the command off the wire, whether it waits on its topic's join or on its own reply.
+    private boolean removeInFlight(Command command) {
+        if (command.ref != null) {
+            return pushes.remove(command.ref, command);
+        }
+        List<Command> waiting = joiningTopics.get(command.topic);
+        return waiting != null && waiting.remove(command);
+    }
+
+    /**
+     * Opens the connection ahead of use and keeps it for at least {@code keepOpenMs}, joining
+     * {@code topics} that are not joined yet.
+     */
+    void warmUp(long keepOpenMs, String[] topics) {
+        synchronized (this) {
+            touch(keepOpenMs);
+            for (String topic : topics) {
+                if (!joinedTopics.containsKey(topic)) {
+                    enqueue(new Command(topic, null, null, null, NOTHING, NOTHING, NOTHING));
+                }
+            }
+            if (webSocket == null) {
+                connect();
+            }
+        }
+        scheduler.schedule(this::closeIfIdle, keepOpenMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Joins {@code topics} and keeps them joined, across reconnects, until they are unsubscribed.
+     */
+    void subscribe(String[] topics) {
+        synchronized (this) {
+            Collections.addAll(subscriptions, topics);
+            queueSubscriptions();
+            if (webSocket == null) {
+                connect();
+            } else {
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Stops rejoining {@code topics}. They stay joined until the connection closes, which it may
+     * now do once it is idle.
+     */
+    synchronized void unsubscribe(String[] topics) {
+        for (String topic : topics) {
+            subscriptions.remove(topic);
+        }
+    }
+
+    /**
+     * Connectivity came back: reconnects right away if topics are subscribed or commands wait,
+     * also after earlier reconnects had been given up on.
+     */
+    synchronized void onOnline() {
+        if (webSocket != null) {
+            return;
+        }
+        reconnectAttempts = 0;
+        queueSubscriptions();
+        if (!queue.isEmpty()) {
+            AppLog.i(TAG, "onOnline: reconnecting");
+            connect();
+        }
+    }
+
+    synchronized void setHedgingEnabled(boolean hedgingEnabled) {
+        this.hedgingEnabled = hedgingEnabled;
+    }
+
+    synchronized State getState() {
+        if (webSocket == null) {
+            return State.CLOSED;
+        }
+        return open ? State.OPEN : State.CONNECTING;
+    }
+
+    private void touch(long keepOpenMs) {
+        idleDeadline = Math.max(idleDeadline, System.currentTimeMillis() + keepOpenMs);
+    }
+
+    // Queues a join for every subscribed topic that is neither joined nor about to be.
+    private void queueSubscriptions() {
+        for (String topic : subscriptions) {
+            if (joinedTopics.containsKey(topic) || joiningTopics.containsKey(topic)) {
+                continue;
+            }
+            boolean queued = false;
+            for (Command command : queue) {
+                if (command.topic.equals(topic)) {
+                    queued = true;
+                    break;
+                }
+            }
+            if (!queued) {
+                queue.add(new Command(topic, null, null, null, NOTHING, NOTHING, NOTHING));
+            }
+        }
+    }
+
+    private void enqueue(Command command) {
+        queue.add(command);
+        if (webSocket == null) {
+            connect();
+        } else {
+            drain();
+        }
+    }
+
+    /**
+     * Drops the current connection, e.g. after the token it was opened with has been replaced.
+     * Queued commands are carried over to a fresh connection.
+     */
+    void reset() {
+        synchronized (this) {
+            WebSocket old = webSocket;
+            List<Runnable> failed = teardown(false);
+            if (old != null) {
+                old.close(1000, "Reset");
+            }
+            queueSubscriptions();
+            if (!queue.isEmpty()) {
+                connect();
+            }
+            for (Runnable failure : failed) {
+                runOutside(failure);
+            }
+        }
+    }
+
+    /**
+     * Reconnects if the current connection was opened with a URL other than the one the handshake
+     * now gives, i.e. with a token that has been renewed since and that the server will keep
+     * refusing whatever is sent on it. Unlike {@link #reset}, pushes still waiting on a reply are
+     * sent again on the new connection rather than failed; setting an attribute twice is harmless.
+     */
+    void reconnectIfStale() {
+        synchronized (this) {
+            WebSocket old = webSocket;
+            if (old == null || old.request().url().equals(new Request.Builder().url(handshake.getUrl()).build().url())) {
+                return;
+            }
+            AppLog.i(TAG, "reconnectIfStale: connection opened with an old token");
+            List<Runnable> stopped = teardown(true);
+            old.close(1000, "Stale token");
+            connect();
+            for (Runnable runnable : stopped) {
+                runOutside(runnable);
+            }
+        }
+    }
+
+    private void connect() {
+        if (reconnectTask != null) {
+            reconnectTask.cancel(false);
+            reconnectTask = null;
+        }
+        cancelHedge();
+        // Whatever gets the connection going again also rejoins the subscriptions
+        queueSubscriptions();
+        AppLog.i(TAG, "connect: opening socket");
+        Request request = new Request.Builder().url(handshake.getUrl()).build();
+        connectStartedAt = System.currentTimeMillis();
+        webSocket = httpClient.newWebSocket(request, this);
+        if (hedgingEnabled && hasWaitingCaller()) {
+            WebSocket primary = webSocket;
+            hedgeTask = scheduler.schedule(() -> hedge(primary), hedgeDelay(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private boolean hasWaitingCaller() {
+        for (Command command : queue) {
+            if (command.deadline != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The observed p90 connect time, once there are enough connects to go by.
+    private long hedgeDelay() {
+        if (connectTimes.getTotal() < MIN_HEDGE_SAMPLES) {
+            return DEFAULT_HEDGE_DELAY_MS;
+        }
+        return Math.max(MIN_HEDGE_DELAY_MS, Math.min(MAX_HEDGE_DELAY_MS, connectTimes.percentile(HEDGE_PERCENTILE)));
+    }
+
+    private synchronized void hedge(WebSocket primary) {
+        hedgeTask = null;
+        if (webSocket != primary || open || hedgeSocket != null) {
+            return;
+        }
+        AppLog.i(TAG, "hedge: socket not open after {}ms, starting a second attempt",
+                System.currentTimeMillis() - connectStartedAt);
+        Request request = new Request.Builder().url(handshake.getUrl()).build();
+        hedgeStartedAt = System.currentTimeMillis();
+        hedgeSocket = httpClient.newWebSocket(request, this);
+    }
+
+    private void cancelHedge() {
+        if (hedgeTask != null) {
+            hedgeTask.cancel(false);
+            hedgeTask = null;
+        }
+        if (hedgeSocket != null) {
+            hedgeSocket.cancel();
+            hedgeSocket = null;
+        }
+    }
+
+    private String nextRef() {
+        return String.valueOf(++ref);
+    }
+
+    // Puts every queued command on the wire.
+    private void drain() {
+        if (!open) {
+            return;
+        }
+        List<Runnable> completed = new ArrayList<>();
+        Command command;
+        while ((command = queue.poll()) != null) {
+            dispatch(command, completed);
+        }
+        for (Runnable runnable : completed) {
+            runOutside(runnable);
+        }
+    }
+
+    private void dispatch(Command command, List<Runnable> completed) {
+        mark(command, TapTrace.Phase.SOCKET_OPEN);
+        command.sentAt = System.currentTimeMillis();
+        String joinRef = joinedTopics.get(command.topic);
+        if (joinRef != null) {
+            mark(command, TapTrace.Phase.JOIN_REPLY);
+            push(command, joinRef, completed);
+            return;
+        }
+        List<Command> waiting = joiningTopics.get(command.topic);
+        if (waiting == null) {
+            String joinRefSent = nextRef();
+            waiting = new ArrayList<>();
+            joiningTopics.put(command.topic, waiting);
+            joins.put(joinRefSent, command.topic);
+            webSocket.send(PhoenixFrame.join(joinRefSent, command.topic));
+        }
+        waiting.add(command);
+    }
+
+    private void push(Command command, String joinRef, List<Runnable> completed) {
+        if (command.payload == null) {
+            completed.add(command.success);
+            return;
+        }
+        command.ref = nextRef();
+        command.sentAt = System.currentTimeMillis();
+        pushes.put(command.ref, command);
+        webSocket.send(command.payload.encode(joinRef, command.ref));
+    }
+
+    private void onJoinReply(String topic, String joinRef, boolean ok, boolean unauthorized, List<Runnable> completed) {
+        List<Command> waiting = joiningTopics.remove(topic);
+        if (ok) {
+            joinedTopics.put(topic, joinRef);
+        }
+        if (waiting == null) {
+            return;
+        }
+        for (Command command : waiting) {
+            mark(command, TapTrace.Phase.JOIN_REPLY);
+            if (ok) {
+                push(command, joinRef, completed);
+            } else {
+                completed.add(unauthorized ? command.unauthorized : command.failure);
+            }
+        }
+    }
+
+    // The channel on topic crashed or was closed, so pushes on it will never be answered.
+    private void onChannelClosed(String topic, List<Runnable> completed) {
+        joinedTopics.remove(topic);
+        Iterator<Command> it = pushes.values().iterator();
+        while (it.hasNext()) {
+            Command command = it.next();
+            if (command.topic.equals(topic)) {
+                it.remove();
+                completed.add(command.failure);
+            }
+        }
+    }
+
+    /**
+     * Forgets the connection and returns the failure callbacks of the pushes it left unanswered,
+     * plus the notice that pushes stopped if it was open. Commands that were still waiting on a
+     * join were never sent and are queued again, as are the unanswered pushes if
+     * {@code requeuePushes}.
+     */
+    private List<Runnable> teardown(boolean requeuePushes) {
+        boolean wasOpen = open;
+        cancelHedge();
+        webSocket = null;
+        open = false;
+        pendingHeartbeat = null;
+        if (heartbeatTask != null) {
+            heartbeatTask.cancel(false);
+            heartbeatTask = null;
+        }
+        List<Command> unsent = new ArrayList<>();
+        List<Runnable> failed = new ArrayList<>(pushes.size());
+        for (Command command : pushes.values()) {
+            if (requeuePushes) {
+                command.ref = null;
+                unsent.add(command);
+            } else {
+                failed.add(command.failure);
+            }
+        }
+        // Pushes went out before the commands still waiting on a join, and go out first again
+        unsent.sort((a, b) -> Long.compare(a.sentAt, b.sentAt));
+        for (List<Command> waiting : joiningTopics.values()) {
+            unsent.addAll(waiting);
+        }
+        for (int i = unsent.size() - 1; i >= 0; i--) {
+            queue.addFirst(unsent.get(i));
+        }
+        joinedTopics.clear();
+        joiningTopics.clear();
+        joins.clear();
+        pushes.clear();
+        if (wasOpen) {
+            failed.add(pushListener::onPushesStopped);
+        }
+        return failed;
+    }
+
+    private void onDisconnected(WebSocket ws, String reason) {
+        List<Runnable> failed;
+        synchronized (this) {
+            if (ws == hedgeSocket) {
+                AppLog.i(TAG, "onDisconnected: second attempt {}", reason);
+                hedgeSocket = null;
+                return;
+            }
+            if (ws != webSocket) {
+                return;
+            }
+            if (!open && hedgeSocket != null) {
+                // The first attempt failed before opening; the second one carries on in its place
+                AppLog.i(TAG, "onDisconnected: first attempt {}", reason);
+                webSocket = hedgeSocket;
+                connectStartedAt = hedgeStartedAt;
+                hedgeSocket = null;
+                return;
+            }
+            AppLog.i(TAG, "onDisconnected: {}", reason);
+            failed = teardown(false);
+            // Topic joins only existed to warm this connection up
+            queue.removeIf(command -> command.payload == null);
+            queueSubscriptions();
+            if (!queue.isEmpty()) {
+                scheduleReconnect();
+            }
+        }
+        for (Runnable failure : failed) {
+            failure.run();
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (reconnectAttempts >= MAX_RECONNECT_ATTEMPTS) {
+            AppLog.i(TAG, "scheduleReconnect: giving up after {} attempts", reconnectAttempts);
+            reconnectAttempts = 0;
+            ArrayDeque<Command> abandoned = new ArrayDeque<>(queue);
+            queue.clear();
+            scheduler.execute(() -> {
+                for (Command command : abandoned) {
+                    command.failure.run();
+                }
+            });
+            return;
+        }
+        long delay = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << reconnectAttempts);
+        reconnectAttempts++;
+        reconnectTask = scheduler.schedule(() -> {
+            synchronized (PhoenixSocket.this) {
+                reconnectTask = null;
+                if (webSocket == null && !queue.isEmpty()) {
+                    connect();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void heartbeat() {
+        synchronized (this) {
+            if (webSocket == null || !open) {
+                return;
+            }
+            if (pendingHeartbeat != null) {
+                // The previous heartbeat was never answered, so the connection is dead.
+                AppLog.i(TAG, "heartbeat: no reply, dropping connection");
+                webSocket.cancel();
+                return;
+            }
+            if (closeIfIdle()) {
+                return;
+            }
+            pendingHeartbeat = nextRef();
+            webSocket.send(PhoenixFrame.heartbeat(pendingHeartbeat));
+        }
+    }
+
+    private synchronized boolean closeIfIdle() {
+        if (webSocket == null || !pushes.isEmpty() || !joiningTopics.isEmpty() || !queue.isEmpty()
+                || !subscriptions.isEmpty()
+                || System.currentTimeMillis() < idleDeadline) {
+            return false;
+        }
+        AppLog.i(TAG, "closeIfIdle: closing idle socket");
+        WebSocket idle = webSocket;
+        for (Runnable stopped : teardown(false)) {
+            runOutside(stopped);
+        }
+        idle.close(1000, "Idle");
+        return true;
+    }
+
+    private static void mark(Command command, TapTrace.Phase phase) {
+        if (command.trace != null) {
+            command.trace.mark(phase);
+        }
+    }
+
+    private void runOutside(Runnable runnable) {
+        if (runnable != null) {
+            scheduler.execute(runnable);
+        }
+    }
+
+    @Override
+    public void onOpen(@NonNull WebSocket ws, @NonNull Response response) {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (ws == hedgeSocket) {
+                AppLog.i(TAG, "onOpen: second attempt opened first");
+                // The first attempt would have taken at least this long; leaving it out would keep
+                // only the fast connects and pull the hedge delay down
+                connectTimes.record(now - connectStartedAt);
+                WebSocket slower = webSocket;
+                webSocket = hedgeSocket;
+                connectStartedAt = hedgeStartedAt;
+                hedgeSocket = null;
+                slower.cancel();
+            } else if (ws != webSocket) {
+                return;
+            }
+            cancelHedge();
+            connectTimes.record(now - connectStartedAt);
+            AppLog.i(TAG, "onOpen: socket open");
+            open = true;
+            reconnectAttempts = 0;
+            heartbeatTask = scheduler.scheduleAtFixedRate(this::heartbeat,
+                    HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            drain();
+        }
+    }
+
+    @Override
+    public void onMessage(@NonNull WebSocket ws, @NonNull String text) {
+        AppLog.d(TAG, "onMessage: {}", text);
+        List<Runnable> callbacks = new ArrayList<>();
+        synchronized (this) {
+            if (ws != webSocket) {
+                return;
+            }
+            lastReceivedAt = System.currentTimeMillis();
+            if (!frame.decode(text)) {
+                AppLog.i(TAG, "onMessage: not a Phoenix frame");
+                return;
+            }
+            if (PhoenixFrame.TOPIC_PHOENIX.equals(frame.topic)) {
+                if (frame.ref != null && frame.ref.equals(pendingHeartbeat)) {
+                    pendingHeartbeat = null;
+                }
+                return;
+            }
+            if (PhoenixFrame.EVENT_ERROR.equals(frame.event) || PhoenixFrame.EVENT_CLOSE.equals(frame.event)) {
+                onChannelClosed(frame.topic, callbacks);
+            }
+            if (!frame.isReply()) {
+                if (frame.isDevicesTopic()) {
+                    String topic = frame.topic;
+                    String event = frame.event;
+                    String payload = frame.payload();
+                    callbacks.add(() -> pushListener.onPush(topic, event, payload));
+                }
+            } else if (frame.ref != null) {
+                boolean ok = frame.isOk();
+                boolean unauthorized = !ok && isUnauthorized(frame.payload());
+                String joinedTopic = joins.remove(frame.ref);
+                if (joinedTopic != null) {
+                    onJoinReply(joinedTopic, frame.ref, ok, unauthorized, callbacks);
+                } else {
+                    Command command = pushes.remove(frame.ref);
+                    if (command != null) {
+                        mark(command, TapTrace.Phase.COMMAND_REPLY);
+                        callbacks.add(ok ? command.success : unauthorized ? command.unauthorized : command.failure);
+                    }
+                }
+                touch(IDLE_TIMEOUT_MS);
+            }
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    // Error replies are rare, so only they get their payload parsed: {"status":"error","response":{"reason":...}}
+    private static boolean isUnauthorized(String payload) {
+        try {
+            JSONObject response = new JSONObject(payload).optJSONObject("response");
+            return response != null && "unauthorized".equals(response.optString("reason"));
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void onClosing(@NonNull WebSocket ws, int code, @NonNull String reason) {
+        ws.close(1000, null);
+        onDisconnected(ws, "closing " + code + " " + reason);
+    }
+
+    @Override
+    public void onClosed(@NonNull WebSocket ws, int code, @NonNull String reason) {
+        onDisconnected(ws, "closed " + code + " " + reason);
+    }
+
+    @Override
+    public void onFailure(@NonNull WebSocket ws, @NonNull Throwable t, Response response) {
+        if (response != null && (response.code() == 401 || response.code() == 403)) {
+            // Renew the token before the reconnect picks it up
+            handshake.onRejected(ws.request().url().toString());
+        }
+        onDisconnected(ws, "failure: " + t + response);
+    }
+}
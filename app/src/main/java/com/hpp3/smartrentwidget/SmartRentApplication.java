@@ -0,0 +1,50 @@
+package com.hpp3.smartrentwidget;
+
+import android.app.Application;
+import android.content.Context;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Owns the process-wide dispatcher that receivers and activities submit background work to, so a
+ * broadcast no longer creates a thread of its own that outlives it.
+ */
+public class SmartRentApplication extends Application {
+    private static final int DISPATCHER_THREADS = 4;
+    private static final long DISPATCHER_KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor dispatcher = createDispatcher();
+
+    private static ThreadPoolExecutor createDispatcher() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DISPATCHER_THREADS, DISPATCHER_THREADS,
+                DISPATCHER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "smartrent-dispatcher-" + threadNumber.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        CredentialManager.warmUp(this);
+        WidgetClickedReceiver.resume(this);
+        Metrics metrics = Metrics.getInstance(this);
+        metrics.registerGauge("dispatcher_threads", dispatcher::getPoolSize);
+        metrics.registerGauge("dispatcher_active_threads", dispatcher::getActiveCount);
+        metrics.registerGauge("dispatcher_largest_pool", dispatcher::getLargestPoolSize);
+        metrics.registerGauge("dispatcher_queue_depth", () -> dispatcher.getQueue().size());
+        metrics.registerGauge("dispatcher_completed_tasks", dispatcher::getCompletedTaskCount);
+    }
+
+    public ThreadPoolExecutor getDispatcher() {
+        return dispatcher;
+    }
+
+    public static ThreadPoolExecutor getDispatcher(Context context) {
+        return ((SmartRentApplication) context.getApplicationContext()).getDispatcher();
+    }
+}
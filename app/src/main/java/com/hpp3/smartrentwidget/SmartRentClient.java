@@ -10,52 +10,176 @@
 package com.hpp3.smartrentwidget;
 
 import android.content.Context;
-import android.util.Log;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.NonNull;
-import androidx.security.crypto.EncryptedSharedPreferences;
-import okhttp3.FormBody;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.RequestBody;
 import okhttp3.Response;
-import okhttp3.WebSocket;
-import okhttp3.WebSocketListener;
 
 public class SmartRentClient {
 
-    private static final String SMARTRENT_BASE_URI = "https://control.smartrent.com/api/v2/";
-    private static final String SMARTRENT_SESSIONS_URI = SMARTRENT_BASE_URI + "sessions";
-    private static final String SMARTRENT_HUBS_URI = SMARTRENT_BASE_URI + "hubs";
-    private static final String SMARTRENT_HUBS_ID_URI = SMARTRENT_BASE_URI + "hubs/{}/devices";
-    private static final String COMMAND_PAYLOAD =
-            "[\"null\", \"null\", \"devices:%d\", \"update_attributes\", {\"device_id\": %d, \"attributes\": [{\"name\": \"%s\", \"value\": \"%s\"}]}]";
-    private static final String SMARTRENT_WEBSOCKET_URI = "wss://control.smartrent.com/socket/websocket?token=%s&vsn=2.0.0";
-    private static final String JOINER_PAYLOAD = "[\"null\", \"null\", \"devices:%d\", \"phx_join\", {}]";
+    private static final int DEFAULT_MAX_CONCURRENT_HUB_REQUESTS = 4;
+    private static final long PREWARM_KEEP_OPEN_MS = TimeUnit.SECONDS.toMillis(60);
+    private static final String SETTINGS_NAME = "SmartRentSettings";
+    private static final String KEY_HEDGING_ENABLED = "hedging_enabled";
+    private static final String COMMAND_JOURNAL_FILE_NAME = "command_journal.bin";
+
+    private final String sessionsUri;
+    private final String tokensUri;
+    private final String hubsUri;
+    private final String hubsIdUri;
+    private final String websocketUri;
+    private final OkHttpClient httpClient;
+    private final PhoenixSocket socket;
+    private final AuthCoordinator auth;
+    private final CircuitBreaker breaker;
+    private final CommandCoalescer commands;
+
+    private final CredentialManager credentialManager;
+    private final Metrics metrics;
+    private final SharedPreferences settings;
+    // Logins and anything else that may wait on the network
+    private final ScheduledExecutorService tokenScheduler = Executors.newSingleThreadScheduledExecutor();
+    // Deadlines and retry delays only, so they fire on time however long a login takes
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor();
+    // Offline command journal writes, in order and off the socket threads
+    private final ExecutorService journalWriter = Executors.newSingleThreadExecutor();
+    private final OfflineCommandQueue offlineQueue;
+    private final CopyOnWriteArrayList<LockStateListener> lockStateListeners = new CopyOnWriteArrayList<>();
+
+    public interface DevicesListener {
+        // Called on an OkHttp thread for each hub that responded, as soon as it did
+        void onDevices(int hubId, List<SmartRentLock> devices);
+    }
 
+    // Like DevicesListener, also telling the position of the hub in the hub list
+    private interface HubDevicesListener {
+        void onDevices(int index, int hubId, List<SmartRentLock> devices);
+    }
 
-    private final OkHttpClient httpClient = new OkHttpClient();
+    public interface GroupResultListener {
+        /**
+         * Called once, with {@code succeeded[i]} telling whether {@code deviceIds[i]} confirmed
+         * the command. Devices that had not replied by the deadline count as failed.
+         */
+        void onResult(int[] deviceIds, boolean[] succeeded);
+    }
 
-    private final String email;
-    private final String password;
-    private String token;
+    public interface LockStateListener {
+        // Called on a socket thread whenever the server reports a lock's state
+        void onLockStateChanged(int deviceId, boolean locked);
+
+        // Called on a socket thread when the connection dropped, so states reported so far may have gone stale
+        void onLockStatesUnknown();
+    }
 
     private static volatile SmartRentClient instance;
 
     private SmartRentClient(Context context) {
-        EncryptedSharedPreferences preferences = CredentialManager.getInstance(context).getEncryptedSharedPreferences();
-        this.email = preferences.getString("username", "");
-        this.password = preferences.getString("password", "");
-        fetchToken();
+        this(context, BuildConfig.SMARTRENT_API_URL, BuildConfig.SMARTRENT_SOCKET_URL,
+                CredentialManager.getInstance(context), new File(context.getFilesDir(), COMMAND_JOURNAL_FILE_NAME));
+    }
+
+    /**
+     * A client talking to the REST API under {@code apiUrl} and the Phoenix socket at
+     * {@code socketUrl}, rather than the endpoints this build was configured with, logging in with
+     * {@code credentialManager} and journaling offline commands to {@code commandJournal}.
+     */
+    SmartRentClient(Context context, String apiUrl, String socketUrl, CredentialManager credentialManager,
+                    File commandJournal) {
+        String apiBase = apiUrl.endsWith("/") ? apiUrl : apiUrl + "/";
+        this.sessionsUri = apiBase + "sessions";
+        this.tokensUri = apiBase + "tokens";
+        this.hubsUri = apiBase + "hubs";
+        this.hubsIdUri = apiBase + "hubs/{}/devices";
+        this.websocketUri = socketUrl;
+        this.credentialManager = credentialManager;
+        this.metrics = Metrics.getInstance(context);
+        this.settings = context.getApplicationContext().getSharedPreferences(SETTINGS_NAME, 0);
+        NetworkState networkState = new SystemNetworkState(context);
+        this.breaker = new CircuitBreaker(networkState, metrics);
+        metrics.registerGauge("circuit_state", () -> breaker.getState().ordinal());
+        metrics.registerGauge("circuit_failure_rate_pct", breaker::failureRatePct);
+        // Explicit per-step limits; operations with a Deadline are further cut to the time they have left.
+        // Every call, the socket handshake included, goes through the circuit breaker.
+        OkHttpClient baseClient = new OkHttpClient.Builder()
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .writeTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(15, TimeUnit.SECONDS)
+                .callTimeout(30, TimeUnit.SECONDS)
+                .addInterceptor(breaker.interceptor())
+                .build();
+        this.auth = new AuthCoordinator(baseClient, sessionsUri, tokensUri,
+                credentialManager, metrics, tokenScheduler);
+        this.httpClient = baseClient.newBuilder()
+                .addInterceptor(auth.interceptor())
+                .authenticator(auth)
+                .build();
+        // The socket carries its token in the URL and has its own hook for a refused handshake
+        this.socket = new PhoenixSocket(baseClient, new PhoenixSocket.Handshake() {
+            @Override
+            public String getUrl() {
+                return getWebSocketUrl();
+            }
+
+            @Override
+            public void onRejected(String url) {
+                // Renewing may log in, which must not hold up the socket's threads
+                tokenScheduler.execute(() -> auth.onHandshakeRejected(url));
+            }
+        }, new PhoenixSocket.PushListener() {
+            @Override
+            public void onPush(String topic, String event, String payload) {
+                SmartRentClient.this.onPush(topic, event, payload);
+            }
+
+            @Override
+            public void onPushesStopped() {
+                for (LockStateListener listener : lockStateListeners) {
+                    listener.onLockStatesUnknown();
+                }
+            }
+        });
+        socket.setHedgingEnabled(isHedgingEnabled());
+        // Subscriptions come back with the network, even if the socket had given up reconnecting
+        networkState.addListener(socket::onOnline);
+        this.commands = new CommandCoalescer(this::sendCommand, tokenScheduler);
+        this.offlineQueue = new OfflineCommandQueue(commandJournal, networkState, timers, tokenScheduler,
+                journalWriter, commands::submit);
+        if (!auth.hasValidToken() && auth.hasCredentials()) {
+            tokenScheduler.execute(() -> {
+                try {
+                    ensureToken();
+                } catch (IOException e) {
+                    AppLog.i("SmartRentClient", "SmartRentClient: no token: {}", e.getMessage());
+                }
+            });
+        }
+        credentialManager.addOnCredentialsChangedListener(manager -> onCredentialsChanged());
+        offlineQueue.replay();
     }
 
     public static SmartRentClient getInstance(Context context) {
@@ -69,79 +193,208 @@ public class SmartRentClient {
         return instance;
     }
 
-    private void fetchToken() {
-        Log.i("SmartRentClient", "fetchToken: fetchingToken");
-        RequestBody body = new FormBody.Builder()
-                .add("email", email)
-                .add("password", password)
-                .build();
+    private boolean hasCredentials() {
+        return auth.hasCredentials();
+    }
 
-        Request request = new Request.Builder()
-                .url(SMARTRENT_SESSIONS_URI)
-                .post(body)
-                .build();
+    // The session and any connection opened with it belong to the previous account.
+    private void onCredentialsChanged() {
+        AppLog.i("SmartRentClient", "onCredentialsChanged: dropping session");
+        auth.clear();
+        socket.reset();
+    }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (response.isSuccessful()) {
-                JSONObject jsonResponse = new JSONObject(response.body().string());
-                this.token = jsonResponse.getString("access_token");
-            } else {
-                throw new RuntimeException("Failed to fetch the token");
+    /**
+     * Whether the backend has been failing and is not being called for now, see
+     * {@link CircuitBreaker}. Commands sent meanwhile fail right away.
+     */
+    public boolean isBackendUnavailable() {
+        return breaker.isOpen();
+    }
+
+    /**
+     * Whether a slow connect gets a second attempt started alongside it, see {@link PhoenixSocket}.
+     * On unless switched off.
+     */
+    public boolean isHedgingEnabled() {
+        return settings.getBoolean(KEY_HEDGING_ENABLED, true);
+    }
+
+    public void setHedgingEnabled(boolean enabled) {
+        settings.edit().putBoolean(KEY_HEDGING_ENABLED, enabled).apply();
+        socket.setHedgingEnabled(enabled);
+    }
+
+    private Deadline deadline(Deadline.Operation operation) {
+        return Deadline.after(operation.budgetMs);
+    }
+
+    /**
+     * Blocks until a usable token is held, see {@link AuthCoordinator#getToken}.
+     */
+    private void ensureToken() throws IOException {
+        ensureToken(null);
+    }
+
+    private void ensureToken(Deadline deadline) throws IOException {
+        auth.getToken(deadline);
+    }
+
+    // A call that is given no more than the time left until the deadline, if there is one.
+    private Call newCall(Request request, Deadline deadline) {
+        return newCall(httpClient, request, deadline);
+    }
+
+    private static Call newCall(OkHttpClient client, Request request, Deadline deadline) {
+        Call call = client.newCall(request);
+        if (deadline != null) {
+            call.timeout().timeout(Math.max(1, deadline.remainingMs()), TimeUnit.MILLISECONDS);
+        }
+        return call;
+    }
+
+    public List<SmartRentLock> getDevices(String deviceType) throws IOException, InvalidAuthException {
+        return getDevices(deviceType, DEFAULT_MAX_CONCURRENT_HUB_REQUESTS);
+    }
+
+    /**
+     * Fetches the devices of type {@code deviceType} (or every device when null) across all hubs,
+     * with up to {@code maxConcurrentRequests} hub requests in flight at once. Devices are returned
+     * in hub order. A hub whose request fails is skipped; an {@link IOException} is only thrown
+     * when every hub failed.
+     */
+    public List<SmartRentLock> getDevices(String deviceType, int maxConcurrentRequests) throws IOException, InvalidAuthException {
+        ArrayList<List<SmartRentLock>> hubDevices = new ArrayList<>();
+        fetchDevices(deviceType, maxConcurrentRequests, (index, hubId, devices) -> {
+            synchronized (hubDevices) {
+                while (hubDevices.size() <= index) {
+                    hubDevices.add(null);
+                }
+                hubDevices.set(index, devices);
+            }
+        });
+        ArrayList<SmartRentLock> devicesList = new ArrayList<>();
+        for (List<SmartRentLock> devices : hubDevices) {
+            if (devices != null) {
+                devicesList.addAll(devices);
             }
-        } catch (IOException | JSONException e) {
-            throw new RuntimeException(e);
         }
+        return devicesList;
     }
 
-    public List<JSONObject> getDevicesData() throws IOException, InvalidAuthException, JSONException {
-        if (this.token == null) {
-            fetchToken();
+    public void getDevices(String deviceType, DevicesListener listener) throws IOException, InvalidAuthException {
+        getDevices(deviceType, DEFAULT_MAX_CONCURRENT_HUB_REQUESTS, listener);
+    }
+
+    /**
+     * Like {@link #getDevices(String, int)}, but hands each hub's devices to {@code listener} as
+     * soon as that hub responds, in whatever order they arrive. Returns once every hub has.
+     * <p>
+     * Listing devices is bounded by the {@link Deadline.Operation#DEVICE_LIST} budget; hubs that
+     * have not responded by then are cancelled and a {@link DeadlineExceededException} is thrown.
+     */
+    public void getDevices(String deviceType, int maxConcurrentRequests, DevicesListener listener) throws IOException, InvalidAuthException {
+        fetchDevices(deviceType, maxConcurrentRequests, (index, hubId, devices) -> listener.onDevices(hubId, devices));
+    }
+
+    private void fetchDevices(String deviceType, int maxConcurrentRequests, HubDevicesListener listener) throws IOException, InvalidAuthException {
+        long start = SystemClock.elapsedRealtime();
+        Deadline deadline = deadline(Deadline.Operation.DEVICE_LIST);
+        try {
+            ensureToken(deadline);
+        } catch (IOException e) {
+            if (deadline.isExpired() && !(e instanceof DeadlineExceededException)) {
+                throw new DeadlineExceededException("Timed out logging in");
+            }
+            throw e;
         }
 
         // Fetch the hubs
         Request hubsRequest = new Request.Builder()
-                .url(SMARTRENT_HUBS_URI)
-                .addHeader("authorization", "Bearer " + this.token)
+                .url(hubsUri)
                 .build();
 
-        JSONArray hubsArray;
-        try (Response hubsResponse = httpClient.newCall(hubsRequest).execute()) {
+        List<Integer> hubIds;
+        try (Response hubsResponse = newCall(hubsRequest, deadline).execute()) {
             if (!hubsResponse.isSuccessful()) {
                 // Handle potential errors, including checking if it's an authentication issue
                 // For simplicity, just throwing a generic exception
                 throw new InvalidAuthException("Failed to fetch hubs data");
             }
-            hubsArray = new JSONArray(hubsResponse.body().string());
+            hubIds = DeviceListDecoder.decodeHubIds(hubsResponse.body().charStream());
+        }
+        int hubCount = hubIds.size();
+        if (hubCount == 0) {
+            return;
         }
-        ArrayList<JSONObject> devicesList = new ArrayList<>();
-
-        // Iterate through each hub and fetch devices for it
-        for (int i = 0; i < hubsArray.length(); i++) {
-            JSONObject hub = hubsArray.getJSONObject(i);
-            String hubId = hub.getString("id");
 
-            String devicesUrl = SMARTRENT_HUBS_ID_URI.replace("{}", hubId);
+        // Fan the per-hub requests out on a dispatcher of our own so the limit only applies here
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(Math.max(1, maxConcurrentRequests));
+        dispatcher.setMaxRequestsPerHost(Math.max(1, maxConcurrentRequests));
+        OkHttpClient fanOutClient = httpClient.newBuilder().dispatcher(dispatcher).build();
+
+        AtomicInteger succeeded = new AtomicInteger();
+        CountDownLatch remaining = new CountDownLatch(hubCount);
+        for (int i = 0; i < hubCount; i++) {
+            int hubId = hubIds.get(i);
+            String devicesUrl = hubsIdUri.replace("{}", String.valueOf(hubId));
             Request devicesRequest = new Request.Builder()
                     .url(devicesUrl)
-                    .addHeader("authorization", "Bearer " + this.token)
                     .build();
 
-            JSONArray hubDevices;
-            try (Response devicesResponse = httpClient.newCall(devicesRequest).execute()) {
+            int index = i;
+            newCall(fanOutClient, devicesRequest, deadline).enqueue(new Callback() {
+                @Override
+                public void onResponse(@NonNull Call call, @NonNull Response response) {
+                    try (Response devicesResponse = response) {
+                        if (devicesResponse.isSuccessful()) {
+                            List<SmartRentLock> devices = DeviceListDecoder.decodeDevices(
+                                    devicesResponse.body().charStream(), hubId, deviceType);
+                            if (succeeded.getAndIncrement() == 0) {
+                                metrics.recordLatency("device_list_first_hub", SystemClock.elapsedRealtime() - start);
+                            }
+                            listener.onDevices(index, hubId, devices);
+                        } else {
+                            AppLog.i("SmartRentClient", "getDevices: hub {} returned {}", hubId, devicesResponse.code());
+                        }
+                    } catch (IOException e) {
+                        AppLog.i("SmartRentClient", "getDevices: hub {} failed: {}", hubId, e);
+                    } finally {
+                        remaining.countDown();
+                    }
+                }
 
-                if (!devicesResponse.isSuccessful()) {
-                    // Handle potential errors, including checking if it's an authentication issue
-                    throw new InvalidAuthException("Failed to fetch devices for hub " + hubId);
+                @Override
+                public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                    AppLog.i("SmartRentClient", "getDevices: hub {} failed: {}", hubId, e);
+                    remaining.countDown();
                 }
+            });
+        }
 
-                hubDevices = new JSONArray(devicesResponse.body().string());
-            }
-            for (int j = 0; j < hubDevices.length(); j++) {
-                devicesList.add(hubDevices.getJSONObject(j));
+        try {
+            if (!remaining.await(deadline.remainingMs(), TimeUnit.MILLISECONDS)) {
+                dispatcher.cancelAll();
+                throw new DeadlineExceededException("Timed out fetching devices");
             }
+        } catch (InterruptedException e) {
+            dispatcher.cancelAll();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching devices");
+        } finally {
+            dispatcher.executorService().shutdown();
         }
 
-        return devicesList;
+        if (succeeded.get() == 0) {
+            throw new IOException("Failed to fetch devices for every hub");
+        }
+        metrics.recordLatency("device_list_all_hubs", SystemClock.elapsedRealtime() - start);
+    }
+
+    private String getWebSocketUrl() {
+        // Appended rather than formatted, the configured URL may well contain a '%'
+        return websocketUri + "?token=" + auth.currentToken() + "&vsn=2.0.0";
     }
 
     public static class InvalidAuthException extends Exception {
@@ -150,99 +403,270 @@ public class SmartRentClient {
         }
     }
 
+    /**
+     * Thrown when an operation ran out of its {@link Deadline} budget, as opposed to failing.
+     */
+    public static class DeadlineExceededException extends InterruptedIOException {
+        public DeadlineExceededException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown instead of calling the backend while it is considered down, see {@link CircuitBreaker}.
+     */
+    public static class BackendUnavailableException extends IOException {
+        public BackendUnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Sets {@code attributeName} of {@code deviceId} to {@code value}. Repeated requests for the
+     * same device attribute are coalesced while one is in flight, see {@link CommandCoalescer}.
+     * The command is journaled and retried, also across offline periods and process restarts,
+     * until it is confirmed or its deadline passes, see {@link OfflineCommandQueue}; only then is
+     * the outcome reported. Unlocks get the {@link Deadline.Operation#UNLOCK} budget, other
+     * commands {@link Deadline.Operation#COMMAND}.
+     */
     public void sendCommandAsync(int deviceId, String attributeName, String value, Runnable success, Runnable failure) {
-        String payload = String.format(Locale.US, COMMAND_PAYLOAD, deviceId, deviceId, attributeName, value);
-        String joiner = String.format(Locale.US, JOINER_PAYLOAD, deviceId);
-        Runnable retry = () -> {
-            fetchToken();
-            sendPayload(deviceId, payload, joiner, success, failure);
-        };
-        sendPayload(deviceId, payload, joiner, success, retry);
-    }
-    private void sendPayload(int deviceId, String payload, String joiner, Runnable success, Runnable failure) {
-        String uri = String.format(Locale.US, SMARTRENT_WEBSOCKET_URI, token);
-        Request request = new Request.Builder().url(uri).build();
-        httpClient.newWebSocket(request, new WebSocketListener() {
-            int counter = 0;
-            boolean failed = false;
-            private void sendPayload(@NonNull WebSocket webSocket) {
-                Log.i("onOpen", joiner);
-                Log.i("onOpen", payload);
-                this.counter = 0;
-                this.failed = false;
-                webSocket.send(joiner);
-                webSocket.send(payload);
-            }
-            @Override
-            public void onOpen(@NonNull WebSocket webSocket, @NonNull Response response) {
-                super.onOpen(webSocket, response);
-                sendPayload(webSocket);
+        sendCommandAsync(deviceId, attributeName, value, success, failure, failure);
+    }
+
+    /**
+     * Like {@link #sendCommandAsync(int, String, String, Runnable, Runnable)}, but runs
+     * {@code timeout} instead of {@code failure} when the command was cancelled for running out
+     * of time.
+     */
+    public void sendCommandAsync(int deviceId, String attributeName, String value, Runnable success, Runnable failure,
+                                 Runnable timeout) {
+        boolean unlock = "locked".equals(attributeName) && "false".equals(value);
+        Deadline deadline = deadline(unlock ? Deadline.Operation.UNLOCK : Deadline.Operation.COMMAND);
+        sendCommandAsync(deviceId, attributeName, value, deadline, null, success, failure, timeout);
+    }
+
+    // Like the public overload, but within a deadline the caller set, e.g. from when a tap started.
+    void sendCommandAsync(int deviceId, String attributeName, String value, Deadline deadline, TapTrace trace,
+                          Runnable success, Runnable failure, Runnable timeout) {
+        sendCommandAsync(deviceId, attributeName, value, trace, deadline, success, () -> {
+            if (deadline.isExpired()) {
+                metrics.increment(Metrics.COMMAND_TIMEOUTS);
+                timeout.run();
+            } else {
+                failure.run();
             }
+        });
+    }
 
-            private boolean isPhxReply(String message) {
-                try {
-                    JSONArray jsonArray = new JSONArray(message);
-                    if (jsonArray.length() < 5) {
-                        return false;
-                    }
+    private void sendCommandAsync(int deviceId, String attributeName, String value, TapTrace trace, Deadline deadline,
+                                  Runnable success, Runnable failure) {
+        if (breaker.isOpen()) {
+            metrics.increment(Metrics.CIRCUIT_REJECTED);
+            failure.run();
+            return;
+        }
+        offlineQueue.submit(deviceId, attributeName, value, deadline, trace, success, failure);
+    }
 
-                    String thirdElement = jsonArray.getString(2);
-                    String fourthElement = jsonArray.getString(3);
+    /**
+     * Sets {@code attributeName} to {@code value} on every one of {@code deviceIds} at once, over
+     * the shared connection, and reports the outcome of all of them together once each device has
+     * replied or {@code timeoutMs} has passed.
+     */
+    public void sendCommandsAsync(int[] deviceIds, String attributeName, String value, long timeoutMs,
+                                  GroupResultListener listener) {
+        sendCommandsAsync(deviceIds, attributeName, value, Deadline.after(timeoutMs), null, listener);
+    }
 
-                    if (!thirdElement.startsWith("devices:") || !"phx_reply".equals(fourthElement)) {
-                        return false;
-                    }
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                    return false;
+    void sendCommandsAsync(int[] deviceIds, String attributeName, String value, Deadline commandDeadline, TapTrace trace,
+                           GroupResultListener listener) {
+        int[] devices = deviceIds.clone();
+        boolean[] succeeded = new boolean[devices.length];
+        AtomicInteger remaining = new AtomicInteger(devices.length);
+        AtomicBoolean reported = new AtomicBoolean();
+        Runnable report = () -> {
+            if (reported.compareAndSet(false, true)) {
+                boolean[] result;
+                synchronized (succeeded) {
+                    result = succeeded.clone();
                 }
-                return true;
+                listener.onResult(devices, result);
             }
+        };
+        if (devices.length == 0) {
+            report.run();
+            return;
+        }
+        // Commands still pending at the deadline are cancelled, which also reports them
+        ScheduledFuture<?> deadline = timers.schedule(report, commandDeadline.remainingMs(), TimeUnit.MILLISECONDS);
+        for (int i = 0; i < devices.length; i++) {
+            int index = i;
+            // Only the first command is traced, the others run alongside it
+            sendCommandAsync(devices[i], attributeName, value, i == 0 ? trace : null, commandDeadline,
+                    () -> {
+                        synchronized (succeeded) {
+                            succeeded[index] = true;
+                        }
+                        if (remaining.decrementAndGet() == 0) {
+                            deadline.cancel(false);
+                            report.run();
+                        }
+                    },
+                    () -> {
+                        if (remaining.decrementAndGet() == 0) {
+                            deadline.cancel(false);
+                            report.run();
+                        }
+                    });
+        }
+    }
 
-            private String getStatus(String message) {
-                try {
-                    JSONArray jsonArray = new JSONArray(message);
-                    if (jsonArray.length() < 5) {
-                        throw new RuntimeException("Not PHX reply");
-                    }
-                    JSONObject jsonObject = jsonArray.getJSONObject(4);
-                    return jsonObject.optString("status");
+    /**
+     * Gets a tap on one of {@code deviceIds} ready to go out on an open connection: makes sure a
+     * token is held, opens the socket and joins the devices' topics, then keeps the socket for
+     * {@link #PREWARM_KEEP_OPEN_MS} unless a command extends it. Does nothing before credentials
+     * have been entered.
+     */
+    public void prewarm(int... deviceIds) {
+        if (!hasCredentials()) {
+            return;
+        }
+        metrics.increment(Metrics.PREWARM_REQUESTED);
+        tokenScheduler.execute(() -> {
+            try {
+                ensureToken();
+            } catch (IOException e) {
+                AppLog.i("SmartRentClient", "prewarm: no token: {}", e.getMessage());
+                return;
+            }
+            String[] topics = new String[deviceIds.length];
+            for (int i = 0; i < deviceIds.length; i++) {
+                topics[i] = PhoenixFrame.devicesTopic(deviceIds[i]);
+            }
+            socket.warmUp(PREWARM_KEEP_OPEN_MS, topics);
+        });
+    }
 
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                    throw new RuntimeException(e);
-                }
+    public void addLockStateListener(LockStateListener listener) {
+        lockStateListeners.add(listener);
+    }
+
+    public void removeLockStateListener(LockStateListener listener) {
+        lockStateListeners.remove(listener);
+    }
+
+    /**
+     * Joins the topics of {@code deviceIds} and keeps them joined, so that changes to their
+     * {@code locked} attribute are pushed to the {@link LockStateListener}s as they happen. All
+     * devices share the one connection commands use.
+     */
+    public void subscribeLockStates(int... deviceIds) {
+        if (!hasCredentials() || deviceIds.length == 0) {
+            return;
+        }
+        tokenScheduler.execute(() -> {
+            try {
+                ensureToken();
+            } catch (IOException e) {
+                AppLog.i("SmartRentClient", "subscribeLockStates: no token: {}", e.getMessage());
+                return;
             }
+            String[] topics = new String[deviceIds.length];
+            for (int i = 0; i < deviceIds.length; i++) {
+                topics[i] = PhoenixFrame.devicesTopic(deviceIds[i]);
+            }
+            socket.subscribe(topics);
+        });
+    }
 
-            @Override
-            public void onMessage(@NonNull WebSocket webSocket, @NonNull String text) {
-                super.onMessage(webSocket, text);
-                Log.i("onMessage", "onMessage: " + text);
-                if (isPhxReply(text)) {
-                    String status = getStatus(text);
-                    if ("ok".equals(status)) {
-                        this.counter += 1;
-                        if (this.counter == 2) {
-                            success.run();
-                            webSocket.close(1000, "Success");
-                        }
-                    } else {
-                        if (!failed) {
-                            failure.run();
-                            webSocket.close(1000, text);
-                            failed = true;
-                        }
-                    }
-                }
+    public void unsubscribeLockStates(int... deviceIds) {
+        String[] topics = new String[deviceIds.length];
+        for (int i = 0; i < deviceIds.length; i++) {
+            topics[i] = PhoenixFrame.devicesTopic(deviceIds[i]);
+        }
+        socket.unsubscribe(topics);
+    }
+
+    private void onPush(String topic, String event, String payload) {
+        if (!PhoenixFrame.EVENT_ATTRIBUTE_STATE.equals(event) || lockStateListeners.isEmpty()) {
+            return;
+        }
+        try {
+            JSONObject attribute = new JSONObject(payload);
+            if (!"locked".equals(attribute.optString("name"))) {
+                return;
+            }
+            int deviceId = Integer.parseInt(topic.substring(PhoenixFrame.TOPIC_DEVICES_PREFIX.length()));
+            boolean locked = Boolean.parseBoolean(attribute.optString("last_read_state", attribute.optString("state")));
+            for (LockStateListener listener : lockStateListeners) {
+                listener.onLockStateChanged(deviceId, locked);
             }
+        } catch (JSONException | NumberFormatException e) {
+            AppLog.i("SmartRentClient", "onPush: unreadable {} on {}: {}", event, topic, e);
+        }
+    }
 
-            @Override
-            public void onFailure(@NonNull WebSocket webSocket, @NonNull Throwable t, Response response) {
-                super.onFailure(webSocket, t, response);
-                Log.i("onFailure", "failure: " + t + response);
+    private void recordConnectionState() {
+        switch (socket.getState()) {
+            case OPEN:
+                metrics.increment(Metrics.TAP_CONNECTION_WARM);
+                break;
+            case CONNECTING:
+                metrics.increment(Metrics.TAP_CONNECTION_CONNECTING);
+                break;
+            default:
+                metrics.increment(Metrics.TAP_CONNECTION_COLD);
+        }
+    }
+
+    private void sendCommand(int deviceId, String attributeName, String value, TapTrace trace, Deadline deadline,
+                             Runnable success, Runnable failure) {
+        String topic = PhoenixFrame.devicesTopic(deviceId);
+        PhoenixFrame.Encoder payload = (joinRef, ref) ->
+                PhoenixFrame.updateAttribute(joinRef, ref, deviceId, attributeName, value);
+        if (breaker.isOpen()) {
+            // A journaled command retries later without bothering the backend meanwhile
+            metrics.increment(Metrics.CIRCUIT_REJECTED);
+            failure.run();
+            return;
+        }
+        String tokenUsed;
+        try {
+            tokenUsed = auth.getToken(deadline);
+        } catch (IOException e) {
+            AppLog.i("SmartRentClient", "sendCommand: no token: {}", e.getMessage());
+            failure.run();
+            return;
+        }
+        Runnable confirmed = () -> {
+            breaker.recordSuccess();
+            success.run();
+        };
+        Runnable failed = () -> {
+            if (deadline != null && deadline.isExpired()) {
+                // No reply in time, which says nothing about the command but may about the backend
+                breaker.recordFailure();
+            }
+            failure.run();
+        };
+        // Only a refusal as unauthorized is worth a new token. The renewal is shared with other
+        // commands refused alongside this one, and runs off the socket thread that reported it.
+        // The connection still carries the refused token, so the first retry also replaces it.
+        Runnable renewAndRetry = () -> tokenScheduler.execute(() -> {
+            try {
+                auth.renew(tokenUsed, deadline);
+            } catch (IOException e) {
+                AppLog.i("SmartRentClient", "sendCommand: renewing the token failed: {}", e.getMessage());
                 failure.run();
-                webSocket.close(1000, "Failed to connect");
+                return;
             }
+            socket.reconnectIfStale();
+            socket.send(topic, payload, null, deadline, confirmed, failed, failed);
         });
+        if (trace != null) {
+            trace.mark(TapTrace.Phase.TOKEN_READY);
+        }
+        recordConnectionState();
+        socket.send(topic, payload, trace, deadline, confirmed, failed, renewAndRetry);
     }
 }
\ No newline at end of file
@@ -6,23 +6,38 @@ import android.os.Parcelable;
 import androidx.annotation.NonNull;
 
 public class SmartRentLock implements Parcelable {
+    public static final String TYPE_ENTRY_CONTROL = "entry_control";
+    public static final int NO_HUB = -1;
+
     private int deviceId;
     private String name;
+    private String type;
+    private int hubId;
 
     public SmartRentLock(int deviceId, String name) {
+        this(deviceId, name, TYPE_ENTRY_CONTROL, NO_HUB);
+    }
+
+    public SmartRentLock(int deviceId, String name, String type, int hubId) {
         this.deviceId = deviceId;
         this.name = name;
+        this.type = type;
+        this.hubId = hubId;
     }
 
     protected SmartRentLock(Parcel in) {
         deviceId = in.readInt();
         name = in.readString();
+        type = in.readString();
+        hubId = in.readInt();
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         dest.writeInt(deviceId);
         dest.writeString(name);
+        dest.writeString(type);
+        dest.writeInt(hubId);
     }
 
     @Override
@@ -67,6 +82,22 @@ public class SmartRentLock implements Parcelable {
         this.name = name;
     }
 
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public int getHubId() {
+        return hubId;
+    }
+
+    public void setHubId(int hubId) {
+        this.hubId = hubId;
+    }
+
     @NonNull
     @Override
     public String toString() {
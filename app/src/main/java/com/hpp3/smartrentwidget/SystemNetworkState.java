@@ -0,0 +1,55 @@
+package com.hpp3.smartrentwidget;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import androidx.annotation.NonNull;
+
+/**
+ * {@link NetworkState} backed by the default network as tracked by {@link ConnectivityManager}.
+ */
+final class SystemNetworkState implements NetworkState {
+    private static final String TAG = "SystemNetworkState";
+
+    private volatile boolean online;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    SystemNetworkState(Context context) {
+        ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
+        NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(connectivityManager.getActiveNetwork());
+        online = capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+        connectivityManager.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(@NonNull Network network) {
+                boolean wasOnline = online;
+                online = true;
+                if (!wasOnline) {
+                    AppLog.i(TAG, "onAvailable: back online");
+                    for (Listener listener : listeners) {
+                        listener.onOnline();
+                    }
+                }
+            }
+
+            @Override
+            public void onLost(@NonNull Network network) {
+                AppLog.i(TAG, "onLost: offline");
+                online = false;
+            }
+        });
+    }
+
+    @Override
+    public boolean isOnline() {
+        return online;
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+}
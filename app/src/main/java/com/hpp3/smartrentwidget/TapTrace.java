@@ -0,0 +1,74 @@
+package com.hpp3.smartrentwidget;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * Timestamps one widget tap as it moves from the broadcast to the result being shown. Phases that
+ * a tap skips, such as opening a socket that was already warm, are recorded as zero.
+ */
+final class TapTrace {
+    enum Phase {
+        RECEIVED,
+        BUSY_SHOWN,
+        TOKEN_READY,
+        SOCKET_OPEN,
+        JOIN_REPLY,
+        COMMAND_REPLY,
+        RESULT_SHOWN;
+
+        final String histogramName = "tap_" + name().toLowerCase(Locale.US);
+    }
+
+    static final String TOTAL = "tap_total";
+
+    private final long[] marks = new long[Phase.values().length];
+    private boolean finished;
+
+    TapTrace() {
+        mark(Phase.RECEIVED);
+    }
+
+    synchronized void mark(Phase phase) {
+        if (marks[phase.ordinal()] == 0) {
+            marks[phase.ordinal()] = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Records the duration of every phase, measured from the phase before it, into {@code metrics}.
+     * Only the first call has any effect.
+     */
+    void finish(Metrics metrics) {
+        long[] durations = new long[marks.length];
+        long total;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            mark(Phase.RESULT_SHOWN);
+            long previous = marks[0];
+            for (int i = 1; i < marks.length; i++) {
+                if (marks[i] == 0) {
+                    marks[i] = previous;
+                }
+                durations[i] = Math.max(0, marks[i] - previous);
+                previous = marks[i];
+            }
+            total = previous - marks[0];
+        }
+        // Every phase and the total go into one write, as this runs on the main thread
+        Phase[] phases = Phase.values();
+        String[] names = new String[phases.length];
+        long[] samples = new long[phases.length];
+        for (int i = 1; i < phases.length; i++) {
+            names[i - 1] = phases[i].histogramName;
+            samples[i - 1] = durations[i];
+        }
+        names[phases.length - 1] = TOTAL;
+        samples[phases.length - 1] = total;
+        metrics.recordLatencies(names, samples);
+    }
+}
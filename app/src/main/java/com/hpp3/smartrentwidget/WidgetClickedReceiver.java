@@ -1,73 +1,188 @@
 package com.hpp3.smartrentwidget;
 
-import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Log;
-import android.util.TypedValue;
-import android.widget.RemoteViews;
+import android.os.SystemClock;
 
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class WidgetClickedReceiver extends AppWidgetProvider {
-    private final Executor executor = Executors.newSingleThreadExecutor();
     private static final String TAG = "WidgetClickedReceiver";
-    private static final String WIDGET_CLICKED_ACTION = "com.hpp3.smartrentwidget.WIDGET_CLICKED";
+    static final String WIDGET_CLICKED_ACTION = "com.hpp3.smartrentwidget.WIDGET_CLICKED";
+    static final String GROUP_CLICKED_ACTION = "com.hpp3.smartrentwidget.GROUP_CLICKED";
+    static final String EXTRA_DEVICE_ID = "com.hpp3.smartrentwidget.EXTRA_DEVICE_ID";
+    // Stays under the 10 second limit the system gives a broadcast before it is considered hung
+    private static final long BROADCAST_DEADLINE_MS = 9_000;
+    // What a tap's command leaves of the broadcast to show its outcome and return to idle
+    private static final long RESULT_MARGIN_MS = WidgetDisplay.RESULT_DURATION_MS + 500;
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final AtomicBoolean watchingLockStates = new AtomicBoolean();
+
+    /**
+     * Keeps the process alive for work started from onReceive, via {@link #goAsync()}, until the
+     * work calls {@link #run()} or {@link #BROADCAST_DEADLINE_MS} passes, whichever comes first.
+     */
+    private static final class BroadcastHold implements Runnable {
+        private final PendingResult pendingResult;
+        private final long startedAt = SystemClock.elapsedRealtime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        BroadcastHold(PendingResult pendingResult) {
+            this.pendingResult = pendingResult;
+            handler.postDelayed(this, BROADCAST_DEADLINE_MS);
+        }
+
+        // Counted from when the hold started, not when the work got going, so that a slow cold
+        // start eats into the command's time rather than into the time left to show its outcome.
+        Deadline commandDeadline() {
+            return Deadline.at(startedAt + BROADCAST_DEADLINE_MS - RESULT_MARGIN_MS);
+        }
+
+        @Override
+        public void run() {
+            if (finished.compareAndSet(false, true)) {
+                handler.removeCallbacks(this);
+                if (pendingResult != null) {
+                    pendingResult.finish();
+                }
+            }
+        }
+    }
 
     @Override
     public void onReceive(Context context, Intent intent) {
         super.onReceive(context, intent);
         if (WIDGET_CLICKED_ACTION.equals(intent.getAction())) {
+            TapTrace trace = new TapTrace();
+            int deviceId = intent.getIntExtra(EXTRA_DEVICE_ID, -1);
+            if (deviceId == -1) {
+                // Click intents bound before widgets were grouped by device carry the widget id
+                int appWidgetId = intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
+                SmartRentLock lock = LockWidgetManager.loadLockConfiguration(context, appWidgetId);
+                if (lock == null) {
+                    return;
+                }
+                deviceId = lock.getDeviceId();
+            }
+            int[] appWidgetIds = LockWidgetManager.getWidgetIds(context, deviceId);
+            if (appWidgetIds.length == 0) {
+                return;
+            }
+            SmartRentLock lock = LockWidgetManager.loadLockConfiguration(context, appWidgetIds[0]);
+            makeApiCall(context, appWidgetIds, lock.getNameShort(), deviceId, trace);
+        } else if (GROUP_CLICKED_ACTION.equals(intent.getAction())) {
             int appWidgetId = intent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
-            SmartRentLock lock = LockWidgetManager.loadLockConfiguration(context, appWidgetId);
-            assert lock != null;
-            makeApiCall(context, appWidgetId, lock.getNameShort(), lock.getDeviceId());
-        }
-    }
-
-    private void updateAppWidget(Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
-        SmartRentLock lock = LockWidgetManager.loadLockConfiguration(context, appWidgetId);
-        if (lock == null) {
-            return;
+            SmartRentLock[] locks = LockWidgetManager.loadGroupConfiguration(context, appWidgetId);
+            if (locks != null) {
+                makeGroupApiCall(context, appWidgetId, locks, new TapTrace());
+            }
         }
-        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.lock_widget);
-        views.setTextViewText(R.id.lockButton, lock.getNameShort());
-
-        Intent intent = new Intent(context, WidgetClickedReceiver.class);
-        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
-        intent.setAction(WIDGET_CLICKED_ACTION);
-        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, appWidgetId, intent,
-                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-
-        views.setOnClickPendingIntent(R.id.lockButton, pendingIntent);
-        appWidgetManager.updateAppWidget(appWidgetId, views);
     }
 
     @Override
     public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager, int appWidgetId, Bundle newOptions) {
-        updateAppWidget(context, appWidgetManager, appWidgetId);
+        WidgetRenderer.bind(context, appWidgetManager, new int[]{appWidgetId});
+        prewarm(context, new int[]{appWidgetId});
     }
 
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
-        for (int appWidgetId : appWidgetIds) {
-            Log.i(TAG, "onUpdate: updating " + appWidgetId);
-            updateAppWidget(context, appWidgetManager, appWidgetId);
+        AppLog.i(TAG, "onUpdate: updating {}", Arrays.toString(appWidgetIds));
+        WidgetRenderer.bind(context, appWidgetManager, appWidgetIds);
+        prewarm(context, appWidgetIds);
+    }
+
+    // The widgets are on screen, so a tap is likely: get the connection ready before it arrives,
+    // and keep the widgets' lock states current over it.
+    private void prewarm(Context context, int[] appWidgetIds) {
+        BroadcastHold hold = new BroadcastHold(goAsync());
+        SmartRentApplication.getDispatcher(context).execute(() -> {
+            try {
+                int[] deviceIds = LockWidgetManager.getDeviceIds(context, appWidgetIds);
+                if (deviceIds.length > 0) {
+                    SmartRentClient client = SmartRentClient.getInstance(context);
+                    client.prewarm(deviceIds);
+                    watchLockStates(context, client, deviceIds);
+                }
+            } catch (Exception e) {
+                AppLog.i(TAG, "prewarm: {}", e.getMessage());
+            } finally {
+                hold.run();
+            }
+        });
+    }
+
+    /**
+     * Brings the widgets in line with a new process. The lock states they showed went unwatched
+     * when the last process died, so they are redrawn with just their names and their devices are
+     * followed again, rather than waiting for the next onUpdate to do it.
+     */
+    static void resume(Context context) {
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        int[] appWidgetIds = appWidgetManager.getAppWidgetIds(new ComponentName(context, WidgetClickedReceiver.class));
+        if (appWidgetIds.length == 0) {
+            return;
+        }
+        WidgetRenderer.bind(context, appWidgetManager, appWidgetIds);
+        SmartRentApplication.getDispatcher(context).execute(() -> {
+            try {
+                int[] deviceIds = LockWidgetManager.getDeviceIds(context, appWidgetIds);
+                if (deviceIds.length > 0) {
+                    watchLockStates(context, SmartRentClient.getInstance(context), deviceIds);
+                }
+            } catch (Exception e) {
+                AppLog.i(TAG, "resume: {}", e.getMessage());
+            }
+        });
+    }
+
+    private static void watchLockStates(Context context, SmartRentClient client, int[] deviceIds) {
+        if (watchingLockStates.compareAndSet(false, true)) {
+            Context appContext = context.getApplicationContext();
+            client.addLockStateListener(new SmartRentClient.LockStateListener() {
+                @Override
+                public void onLockStateChanged(int deviceId, boolean locked) {
+                    WidgetDisplay.showLockState(appContext, deviceId, locked);
+                }
+
+                @Override
+                public void onLockStatesUnknown() {
+                    WidgetDisplay.forgetLockStates(appContext);
+                }
+            });
         }
+        client.subscribeLockStates(deviceIds);
     }
 
     @Override
     public void onDeleted(Context context, int[] appWidgetIds) {
-        for (int appWidgetId : appWidgetIds) {
-            LockWidgetManager.deleteLockConfiguration(context, appWidgetId);
-            Log.i(TAG, "onDeleted: deleting " + appWidgetId);
+        int[] deviceIds = LockWidgetManager.getDeviceIds(context, appWidgetIds);
+        LockWidgetManager.deleteLockConfigurations(context, appWidgetIds);
+        WidgetRenderer.forget(appWidgetIds);
+        AppLog.i(TAG, "onDeleted: deleting {}", Arrays.toString(appWidgetIds));
+        // Stop following devices that no widget shows anymore
+        int[] orphaned = Arrays.stream(deviceIds)
+                .filter(deviceId -> !LockWidgetManager.hasWidgets(context, deviceId))
+                .toArray();
+        if (orphaned.length > 0) {
+            BroadcastHold hold = new BroadcastHold(goAsync());
+            SmartRentApplication.getDispatcher(context).execute(() -> {
+                try {
+                    SmartRentClient.getInstance(context).unsubscribeLockStates(orphaned);
+                } catch (Exception e) {
+                    AppLog.i(TAG, "onDeleted: {}", e.getMessage());
+                } finally {
+                    hold.run();
+                }
+            });
         }
     }
 
@@ -75,13 +190,7 @@ public class WidgetClickedReceiver extends AppWidgetProvider {
     public void onRestored(Context context, int[] oldWidgetIds, int[] newWidgetIds) {
         // map the old widget ids to the new widget ids
         assert oldWidgetIds.length == newWidgetIds.length;
-        for (int i = 0; i < oldWidgetIds.length; i++) {
-            SmartRentLock lock = LockWidgetManager.loadLockConfiguration(context, oldWidgetIds[i]);
-            LockWidgetManager.deleteLockConfiguration(context, oldWidgetIds[i]);
-            if (lock != null) {
-                LockWidgetManager.saveLockConfiguration(context, newWidgetIds[i], lock);
-            }
-        }
+        LockWidgetManager.remapLockConfigurations(context, oldWidgetIds, newWidgetIds);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
             AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
             for (int newId : newWidgetIds) {
@@ -92,48 +201,56 @@ public class WidgetClickedReceiver extends AppWidgetProvider {
         }
     }
 
-    private void makeApiCall(Context context, int appWidgetId, String lockName, int lockId) {
-        executor.execute(() -> {
+    private void makeApiCall(Context context, int[] appWidgetIds, String lockName, int lockId, TapTrace trace) {
+        int generation = WidgetDisplay.showBusy(context, lockId, appWidgetIds, trace);
+        BroadcastHold hold = new BroadcastHold(goAsync());
+        SmartRentApplication.getDispatcher(context).execute(() -> {
             try {
-                showBusyIndicator(context, appWidgetId);
                 SmartRentClient client = SmartRentClient.getInstance(context);
-                client.sendCommandAsync(lockId, "locked", "false",
-                        () -> flashText(context, appWidgetId, lockName, "✔️"),
-                        () -> flashText(context, appWidgetId, lockName, "❌"));
+                client.sendCommandAsync(lockId, "locked", "false", hold.commandDeadline(), trace,
+                        () -> WidgetDisplay.showResult(context, lockId, generation, lockName, "✔️", trace, hold),
+                        () -> WidgetDisplay.showResult(context, lockId, generation, lockName, failureText(client), trace, hold),
+                        () -> WidgetDisplay.showResult(context, lockId, generation, lockName, "⏱️", trace, hold));
             } catch (Exception e) {
-                Log.i("LockWidgetProvider", "makeApiCall: " + e.getMessage());
-                flashText(context, appWidgetId, lockName, "❌");
+                AppLog.i("LockWidgetProvider", "makeApiCall: {}", e.getMessage());
+                WidgetDisplay.showResult(context, lockId, generation, lockName, "❌", trace, hold);
             }
         });
     }
 
-    private void showBusyIndicator(Context context, int appWidgetId) {
-        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.lock_widget);
-        views.setTextViewText(R.id.lockButton, "⏳");
-        views.setTextViewTextSize(R.id.lockButton, TypedValue.COMPLEX_UNIT_SP, 18);
-        AppWidgetManager.getInstance(context).updateAppWidget(appWidgetId, views);
-    }
-
-    private void resetName(Context context, int appWidgetId, String lockName) {
-        new Handler(Looper.getMainLooper()).post(() -> {
-            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.lock_widget);
-
-            views.setTextViewText(R.id.lockButton, lockName);
-            views.setTextViewTextSize(R.id.lockButton, TypedValue.COMPLEX_UNIT_SP, 11);
-            AppWidgetManager.getInstance(context).updateAppWidget(appWidgetId, views);
+    // Unlocks every lock of a group widget at once and shows how many of them confirmed.
+    private void makeGroupApiCall(Context context, int appWidgetId, SmartRentLock[] locks, TapTrace trace) {
+        String groupName = WidgetRenderer.groupName(locks);
+        int generation = WidgetDisplay.showGroupBusy(context, appWidgetId, trace);
+        int[] deviceIds = new int[locks.length];
+        for (int i = 0; i < locks.length; i++) {
+            deviceIds[i] = locks[i].getDeviceId();
+        }
+        BroadcastHold hold = new BroadcastHold(goAsync());
+        SmartRentApplication.getDispatcher(context).execute(() -> {
+            try {
+                SmartRentClient client = SmartRentClient.getInstance(context);
+                client.sendCommandsAsync(deviceIds, "locked", "false", hold.commandDeadline(), trace,
+                        (devices, succeeded) -> {
+                            int confirmed = 0;
+                            for (boolean ok : succeeded) {
+                                if (ok) {
+                                    confirmed++;
+                                }
+                            }
+                            String text = confirmed == devices.length ? "✔️"
+                                    : confirmed == 0 ? failureText(client) : confirmed + "/" + devices.length;
+                            WidgetDisplay.showGroupResult(context, appWidgetId, generation, groupName, text, trace, hold);
+                        });
+            } catch (Exception e) {
+                AppLog.i(TAG, "makeGroupApiCall: {}", e.getMessage());
+                WidgetDisplay.showGroupResult(context, appWidgetId, generation, groupName, "❌", trace, hold);
+            }
         });
     }
 
-    private void flashText(Context context, int appWidgetId, String lockName, String text) {
-        new Handler(Looper.getMainLooper()).post(() -> {
-            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.lock_widget);
-            views.setTextViewText(R.id.lockButton, text);
-            views.setTextViewTextSize(R.id.lockButton, TypedValue.COMPLEX_UNIT_SP, 18);
-            AppWidgetManager.getInstance(context).updateAppWidget(appWidgetId, views);
-        });
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException ignored) {}
-        resetName(context, appWidgetId, lockName);
+    // Tells a backend that is down, and not being called, apart from a command that failed.
+    private static String failureText(SmartRentClient client) {
+        return client.isBackendUnavailable() ? "⛔" : "❌";
     }
-}
\ No newline at end of file
+}
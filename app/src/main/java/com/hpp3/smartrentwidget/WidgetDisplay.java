@@ -0,0 +1,224 @@
+package com.hpp3.smartrentwidget;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Drives what a device's widgets show while a command runs: idle (lock name) → busy (⏳) → result
+ * (✔️/❌) → idle again after {@link #RESULT_DURATION_MS}. Every widget of the device mirrors the
+ * same state. All transitions run on the main looper and the return to idle is a delayed post
+ * rather than a sleeping thread, so any number of devices can animate at once. A new tap on a
+ * device cancels its pending transitions, and results from the tap it replaced are ignored.
+ * <p>
+ * Once the server has reported a device's lock state, the idle text is prefixed with it and
+ * updated on every widget of the device as it changes, until the connection reporting it drops.
+ * <p>
+ * Group widgets go through the same states, keyed by widget rather than by device.
+ */
+final class WidgetDisplay {
+    static final long RESULT_DURATION_MS = 1000;
+
+    private enum State {
+        IDLE, BUSY, RESULT
+    }
+
+    private static class Entry {
+        State state = State.IDLE;
+        int generation;
+        int[] appWidgetIds = new int[0];
+        // Last reported lock state, null until the server has sent one
+        Boolean locked;
+        final Object token = new Object();
+    }
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    // Guarded by entries, like groupEntries
+    private static final SparseArray<Entry> entries = new SparseArray<>();
+    private static final SparseArray<Entry> groupEntries = new SparseArray<>();
+
+    private WidgetDisplay() {
+    }
+
+    private static Entry entry(int deviceId) {
+        return entry(entries, deviceId);
+    }
+
+    private static Entry entry(SparseArray<Entry> map, int key) {
+        Entry entry = map.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            map.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Starts a new tap on {@code deviceId}: cancels whatever its widgets were showing and shows
+     * the busy indicator on {@code appWidgetIds}. Returns the tap's generation, to be passed to
+     * {@link #showResult}.
+     */
+    static int showBusy(Context context, int deviceId, int[] appWidgetIds, TapTrace trace) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entry(deviceId);
+        }
+        return busy(context, entry, appWidgetIds, trace);
+    }
+
+    /**
+     * Shows {@code text} as the outcome of tap {@code generation}, then returns to the lock name
+     * and runs {@code done}. Only runs {@code done} if another tap has started on the device since.
+     */
+    static void showResult(Context context, int deviceId, int generation, String lockName, String text, TapTrace trace,
+                           Runnable done) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entry(deviceId);
+        }
+        result(context, entry, generation, text, trace, () -> idleText(deviceId, lockName), done);
+    }
+
+    // Like showBusy, for a group widget.
+    static int showGroupBusy(Context context, int appWidgetId, TapTrace trace) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entry(groupEntries, appWidgetId);
+        }
+        return busy(context, entry, new int[]{appWidgetId}, trace);
+    }
+
+    // Like showResult, for a group widget.
+    static void showGroupResult(Context context, int appWidgetId, int generation, String groupName, String text, TapTrace trace,
+                                Runnable done) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entry(groupEntries, appWidgetId);
+        }
+        result(context, entry, generation, text, trace, () -> groupName, done);
+    }
+
+    private static int busy(Context context, Entry entry, int[] appWidgetIds, TapTrace trace) {
+        int generation;
+        synchronized (entries) {
+            entry.appWidgetIds = appWidgetIds;
+            generation = ++entry.generation;
+        }
+        handler.removeCallbacksAndMessages(entry.token);
+        post(entry, () -> {
+            if (isStale(entry, generation)) {
+                return;
+            }
+            entry.state = State.BUSY;
+            WidgetRenderer.showText(context, entry.appWidgetIds, "⏳", WidgetRenderer.STATUS_TEXT_SIZE_SP);
+            trace.mark(TapTrace.Phase.BUSY_SHOWN);
+        });
+        return generation;
+    }
+
+    private static void result(Context context, Entry entry, int generation, String text, TapTrace trace,
+                               Supplier<String> idleText, Runnable done) {
+        post(entry, () -> {
+            if (isStale(entry, generation) || entry.state == State.RESULT) {
+                done.run();
+                return;
+            }
+            entry.state = State.RESULT;
+            WidgetRenderer.showText(context, entry.appWidgetIds, text, WidgetRenderer.STATUS_TEXT_SIZE_SP);
+            trace.finish(Metrics.getInstance(context));
+            // Not cancelled by a new tap like the other transitions, so that done always runs
+            handler.postAtTime(() -> {
+                if (!isStale(entry, generation)) {
+                    entry.state = State.IDLE;
+                    WidgetRenderer.showText(context, entry.appWidgetIds, idleText.get(), WidgetRenderer.NAME_TEXT_SIZE_SP);
+                }
+                done.run();
+            }, SystemClock.uptimeMillis() + RESULT_DURATION_MS);
+        });
+    }
+
+    /**
+     * Records the reported lock state of {@code deviceId} and shows it on the device's widgets if
+     * they are idle; a busy or result display picks it up when it returns to idle.
+     */
+    static void showLockState(Context context, int deviceId, boolean locked) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entry(deviceId);
+            if (entry.locked != null && entry.locked == locked) {
+                return;
+            }
+            entry.locked = locked;
+        }
+        showIdle(context, deviceId, entry);
+    }
+
+    /**
+     * Forgets every reported lock state, e.g. once they are no longer kept current, and shows
+     * the idle widgets without one until the server reports them again.
+     */
+    static void forgetLockStates(Context context) {
+        List<Integer> deviceIds = new ArrayList<>();
+        List<Entry> forgotten = new ArrayList<>();
+        synchronized (entries) {
+            for (int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.valueAt(i);
+                if (entry.locked != null) {
+                    entry.locked = null;
+                    deviceIds.add(entries.keyAt(i));
+                    forgotten.add(entry);
+                }
+            }
+        }
+        for (int i = 0; i < forgotten.size(); i++) {
+            showIdle(context, deviceIds.get(i), forgotten.get(i));
+        }
+    }
+
+    // Redraws the device's widgets with their idle text, unless a tap is being shown on them.
+    private static void showIdle(Context context, int deviceId, Entry entry) {
+        post(entry, () -> {
+            if (entry.state != State.IDLE) {
+                return;
+            }
+            int[] appWidgetIds = LockWidgetManager.getWidgetIds(context, deviceId);
+            if (appWidgetIds.length == 0) {
+                return;
+            }
+            SmartRentLock lock = LockWidgetManager.loadLockConfiguration(context, appWidgetIds[0]);
+            if (lock != null) {
+                WidgetRenderer.showText(context, appWidgetIds, idleText(deviceId, lock.getNameShort()),
+                        WidgetRenderer.NAME_TEXT_SIZE_SP);
+            }
+        });
+    }
+
+    // What an idle widget of the device shows: its name, prefixed with the lock state once known.
+    static String idleText(int deviceId, String lockName) {
+        Boolean locked;
+        synchronized (entries) {
+            Entry entry = entries.get(deviceId);
+            locked = entry == null ? null : entry.locked;
+        }
+        if (locked == null) {
+            return lockName;
+        }
+        return (locked ? "🔒 " : "🔓 ") + lockName;
+    }
+
+    private static boolean isStale(Entry entry, int generation) {
+        synchronized (entries) {
+            return entry.generation != generation;
+        }
+    }
+
+    private static void post(Entry entry, Runnable runnable) {
+        handler.postAtTime(runnable, entry.token, SystemClock.uptimeMillis());
+    }
+}
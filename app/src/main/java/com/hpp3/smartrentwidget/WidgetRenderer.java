@@ -0,0 +1,181 @@
+package com.hpp3.smartrentwidget;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.SparseArray;
+import android.util.TypedValue;
+import android.widget.RemoteViews;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pushes RemoteViews to the launcher, remembering what each widget last received so that no-op
+ * updates are skipped. Widgets showing the same device share one click intent and are updated
+ * together with a single {@code updateAppWidget(int[], …)} call; text and size changes only send
+ * a partial update. Group widgets each have a click intent of their own.
+ */
+final class WidgetRenderer {
+    static final int NAME_TEXT_SIZE_SP = 11;
+    static final int STATUS_TEXT_SIZE_SP = 18;
+    // Rendered device of a group widget
+    private static final int GROUP = -1;
+
+    private static class Rendered {
+        int deviceId;
+        String text;
+        int textSizeSp;
+    }
+
+    private static final SparseArray<Rendered> rendered = new SparseArray<>();
+
+    private WidgetRenderer() {
+    }
+
+    /**
+     * Fully renders each configured widget with its lock name (and state) and click intent. Widgets already
+     * showing exactly that are left alone.
+     */
+    static void bind(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        SmartRentLock[] locks = LockWidgetManager.loadLockConfigurations(context, appWidgetIds);
+        SparseArray<List<Integer>> byDevice = new SparseArray<>();
+        SparseArray<SmartRentLock> deviceLocks = new SparseArray<>();
+        SparseArray<String> groups = new SparseArray<>();
+        for (int i = 0; i < appWidgetIds.length; i++) {
+            SmartRentLock[] group = locks[i] == null ? LockWidgetManager.loadGroupConfiguration(context, appWidgetIds[i]) : null;
+            if (group != null) {
+                groups.put(appWidgetIds[i], groupName(group));
+            }
+        }
+        synchronized (rendered) {
+            for (int i = 0; i < groups.size(); i++) {
+                if (isShowing(groups.keyAt(i), GROUP, groups.valueAt(i), NAME_TEXT_SIZE_SP)) {
+                    groups.removeAt(i--);
+                } else {
+                    remember(groups.keyAt(i), GROUP, groups.valueAt(i), NAME_TEXT_SIZE_SP);
+                }
+            }
+            for (int i = 0; i < appWidgetIds.length; i++) {
+                SmartRentLock lock = locks[i];
+                if (lock == null || isShowing(appWidgetIds[i], lock.getDeviceId(), idleText(lock), NAME_TEXT_SIZE_SP)) {
+                    continue;
+                }
+                List<Integer> group = byDevice.get(lock.getDeviceId());
+                if (group == null) {
+                    group = new ArrayList<>();
+                    byDevice.put(lock.getDeviceId(), group);
+                    deviceLocks.put(lock.getDeviceId(), lock);
+                }
+                group.add(appWidgetIds[i]);
+            }
+            for (int i = 0; i < byDevice.size(); i++) {
+                for (int appWidgetId : byDevice.valueAt(i)) {
+                    remember(appWidgetId, byDevice.keyAt(i), idleText(deviceLocks.valueAt(i)), NAME_TEXT_SIZE_SP);
+                }
+            }
+        }
+        for (int i = 0; i < byDevice.size(); i++) {
+            SmartRentLock lock = deviceLocks.valueAt(i);
+            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.lock_widget);
+            views.setTextViewText(R.id.lockButton, idleText(lock));
+            views.setTextViewTextSize(R.id.lockButton, TypedValue.COMPLEX_UNIT_SP, NAME_TEXT_SIZE_SP);
+            views.setOnClickPendingIntent(R.id.lockButton, clickIntent(context, lock.getDeviceId()));
+            appWidgetManager.updateAppWidget(toArray(byDevice.valueAt(i)), views);
+        }
+        for (int i = 0; i < groups.size(); i++) {
+            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.lock_widget);
+            views.setTextViewText(R.id.lockButton, groups.valueAt(i));
+            views.setTextViewTextSize(R.id.lockButton, TypedValue.COMPLEX_UNIT_SP, NAME_TEXT_SIZE_SP);
+            views.setOnClickPendingIntent(R.id.lockButton, groupClickIntent(context, groups.keyAt(i)));
+            appWidgetManager.updateAppWidget(groups.keyAt(i), views);
+        }
+    }
+
+    // What an idle group widget shows.
+    static String groupName(SmartRentLock[] locks) {
+        return locks.length + " locks";
+    }
+
+    /**
+     * Shows {@code text} on the given widgets of one device, sending a single partial update to
+     * those not already showing it.
+     */
+    static void showText(Context context, int[] appWidgetIds, String text, int textSizeSp) {
+        List<Integer> changed = new ArrayList<>(appWidgetIds.length);
+        synchronized (rendered) {
+            for (int appWidgetId : appWidgetIds) {
+                Rendered state = rendered.get(appWidgetId);
+                int deviceId = state == null ? -1 : state.deviceId;
+                if (!isShowing(appWidgetId, deviceId, text, textSizeSp)) {
+                    remember(appWidgetId, deviceId, text, textSizeSp);
+                    changed.add(appWidgetId);
+                }
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.lock_widget);
+        views.setTextViewText(R.id.lockButton, text);
+        views.setTextViewTextSize(R.id.lockButton, TypedValue.COMPLEX_UNIT_SP, textSizeSp);
+        AppWidgetManager.getInstance(context).partiallyUpdateAppWidget(toArray(changed), views);
+    }
+
+    static void forget(int[] appWidgetIds) {
+        synchronized (rendered) {
+            for (int appWidgetId : appWidgetIds) {
+                rendered.remove(appWidgetId);
+            }
+        }
+    }
+
+    private static String idleText(SmartRentLock lock) {
+        return WidgetDisplay.idleText(lock.getDeviceId(), lock.getNameShort());
+    }
+
+    private static boolean isShowing(int appWidgetId, int deviceId, String text, int textSizeSp) {
+        Rendered state = rendered.get(appWidgetId);
+        return state != null && state.deviceId == deviceId && state.textSizeSp == textSizeSp && state.text.equals(text);
+    }
+
+    private static void remember(int appWidgetId, int deviceId, String text, int textSizeSp) {
+        Rendered state = rendered.get(appWidgetId);
+        if (state == null) {
+            state = new Rendered();
+            rendered.put(appWidgetId, state);
+        }
+        state.deviceId = deviceId;
+        state.text = text;
+        state.textSizeSp = textSizeSp;
+    }
+
+    // One intent per device, told apart by its data URI, shared by every widget showing the device.
+    private static PendingIntent clickIntent(Context context, int deviceId) {
+        Intent intent = new Intent(context, WidgetClickedReceiver.class);
+        intent.setAction(WidgetClickedReceiver.WIDGET_CLICKED_ACTION);
+        intent.setData(Uri.parse("smartrent://device/" + deviceId));
+        intent.putExtra(WidgetClickedReceiver.EXTRA_DEVICE_ID, deviceId);
+        return PendingIntent.getBroadcast(context, deviceId, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private static PendingIntent groupClickIntent(Context context, int appWidgetId) {
+        Intent intent = new Intent(context, WidgetClickedReceiver.class);
+        intent.setAction(WidgetClickedReceiver.GROUP_CLICKED_ACTION);
+        intent.setData(Uri.parse("smartrent://group/" + appWidgetId));
+        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+        return PendingIntent.getBroadcast(context, appWidgetId, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private static int[] toArray(List<Integer> ids) {
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,56 @@
+plugins {
+    id("com.android.library")
+    id("androidx.benchmark")
+}
+
+android {
+    // The app's package, so the code under test keeps its package-private access and BuildConfig
+    namespace = "com.hpp3.smartrentwidget"
+    testNamespace = "com.hpp3.smartrentwidget.benchmark"
+    compileSdk = 33
+
+    defaultConfig {
+        minSdk = 26
+
+        testInstrumentationRunner = "androidx.benchmark.junit4.AndroidBenchmarkRunner"
+        buildConfigField("int", "LOG_LEVEL", "android.util.Log.INFO")
+    }
+
+    // Timings are only meaningful against a build that is not debuggable
+    testBuildType = "release"
+    buildTypes {
+        release {
+            isMinifyEnabled = false
+        }
+    }
+    compileOptions {
+        sourceCompatibility = JavaVersion.VERSION_1_8
+        targetCompatibility = JavaVersion.VERSION_1_8
+    }
+    buildFeatures {
+        buildConfig = true
+    }
+    sourceSets {
+        getByName("main") {
+            java.srcDir(layout.buildDirectory.dir("generated/appSources"))
+        }
+    }
+}
+
+// The benchmarked classes and what they need, compiled from the app's sources as they ship
+val appSources = tasks.register<Sync>("appSources") {
+    from("../app/src/main/java") {
+        include(listOf("AppLog", "DeviceListDecoder", "LockWidgetManager", "SmartRentLock")
+                .map { "com/hpp3/smartrentwidget/$it.java" })
+    }
+    into(layout.buildDirectory.dir("generated/appSources"))
+}
+tasks.named("preBuild") {
+    dependsOn(appSources)
+}
+
+dependencies {
+    implementation("androidx.annotation:annotation:1.6.0")
+    androidTestImplementation("androidx.test.ext:junit:1.1.5")
+    androidTestImplementation("androidx.benchmark:benchmark-junit4:1.1.1")
+}
@@ -0,0 +1,49 @@
+package com.hpp3.smartrentwidget;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+/**
+ * Decoding a hub's device list and keeping only its locks, as done for every hub on refresh.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DeviceListDecoderBenchmark {
+    private static final int DEVICES_PER_HUB = 60;
+
+    @Rule
+    public final BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    @Test
+    public void decodeAndFilter() throws IOException {
+        String devices = sampleDevices();
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            DeviceListDecoder.decodeDevices(new StringReader(devices), 1, SmartRentLock.TYPE_ENTRY_CONTROL);
+        }
+    }
+
+    // A hub's device list shaped like the real response, with one lock among the sensors.
+    private static String sampleDevices() {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < DEVICES_PER_HUB; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(1000 + i)
+                    .append(",\"name\":\"Device ").append(i).append(" - Lock\"")
+                    .append(",\"type\":\"").append(i % 6 == 0 ? SmartRentLock.TYPE_ENTRY_CONTROL : "sensor_notification").append('"')
+                    .append(",\"online\":true,\"battery_powered\":true,\"attributes\":[")
+                    .append("{\"name\":\"locked\",\"state\":\"true\"},{\"name\":\"battery_level\",\"state\":\"87\"}]")
+                    .append(",\"room\":{\"id\":42,\"name\":\"Hallway\"}}");
+        }
+        return json.append(']').toString();
+    }
+}
@@ -0,0 +1,53 @@
+package com.hpp3.smartrentwidget;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+/**
+ * Widget configuration lookups, made for every widget on each update and tap.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LockWidgetManagerBenchmark {
+    private static final int WIDGETS = 8;
+
+    @Rule
+    public final BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private Context context;
+    private final int[] appWidgetIds = new int[WIDGETS];
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        for (int i = 0; i < WIDGETS; i++) {
+            appWidgetIds[i] = i + 1;
+            LockWidgetManager.saveLockConfiguration(context, appWidgetIds[i], new SmartRentLock(1000 + i, "Lock " + i));
+        }
+    }
+
+    @Test
+    public void loadLockConfiguration() {
+        BenchmarkState state = benchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            LockWidgetManager.loadLockConfiguration(context, appWidgetIds[i++ % WIDGETS]);
+        }
+    }
+
+    @Test
+    public void loadLockConfigurations() {
+        BenchmarkState state = benchmarkRule.getState();
+        while (state.keepRunning()) {
+            LockWidgetManager.loadLockConfigurations(context, appWidgetIds);
+        }
+    }
+}
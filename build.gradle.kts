@@ -1,5 +1,8 @@
 // Top-level build file where you can add configuration options common to all sub-projects/modules.
 plugins {
     id("com.android.application") version "8.1.2" apply false
+    id("com.android.library") version "8.1.2" apply false
     id("org.jetbrains.kotlin.android") version "1.8.10" apply false
+    id("androidx.benchmark") version "1.1.1" apply false
+    id("me.champeau.jmh") version "0.7.1" apply false
 }
\ No newline at end of file
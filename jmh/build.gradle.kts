@@ -0,0 +1,35 @@
+plugins {
+    java
+    id("me.champeau.jmh")
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+// The frame codec is plain Java, so it is benchmarked on the JVM straight from the app's sources
+sourceSets {
+    main {
+        java {
+            srcDir("../app/src/main/java")
+            include("com/hpp3/smartrentwidget/PhoenixFrame.java")
+        }
+    }
+}
+
+dependencies {
+    // Only for the baseline PhoenixFrame is compared against; on a device org.json is the platform's
+    jmh("org.json:json:20231013")
+}
+
+jmh {
+    warmupIterations.set(3)
+    iterations.set(5)
+    fork.set(1)
+    // Reports allocations per operation next to the timings
+    profilers.add("gc")
+    // Machine-readable, like the androidx.benchmark module's output, so runs can be diffed
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
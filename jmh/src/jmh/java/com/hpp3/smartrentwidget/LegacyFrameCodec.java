@@ -0,0 +1,47 @@
+package com.hpp3.smartrentwidget;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.Locale;
+
+/**
+ * The frame handling {@link PhoenixFrame} replaced, kept as the baseline it is benchmarked
+ * against: commands formatted with {@link String#format}, and every received frame parsed into a
+ * {@link JSONArray} twice, once to recognize a reply and again to read its status.
+ */
+final class LegacyFrameCodec {
+    private static final String COMMAND_PAYLOAD =
+            "[\"null\", \"null\", \"devices:%d\", \"update_attributes\", {\"device_id\": %d, \"attributes\": [{\"name\": \"%s\", \"value\": \"%s\"}]}]";
+
+    private LegacyFrameCodec() {
+    }
+
+    static String updateAttribute(int deviceId, String name, String value) {
+        return String.format(Locale.US, COMMAND_PAYLOAD, deviceId, deviceId, name, value);
+    }
+
+    static boolean isPhxReply(String message) {
+        try {
+            JSONArray jsonArray = new JSONArray(message);
+            if (jsonArray.length() < 5) {
+                return false;
+            }
+            return jsonArray.getString(2).startsWith("devices:") && "phx_reply".equals(jsonArray.getString(3));
+        } catch (JSONException e) {
+            return false;
+        }
+    }
+
+    static String getStatus(String message) {
+        try {
+            JSONArray jsonArray = new JSONArray(message);
+            if (jsonArray.length() < 5) {
+                throw new RuntimeException("Not PHX reply");
+            }
+            return jsonArray.getJSONObject(4).optString("status");
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
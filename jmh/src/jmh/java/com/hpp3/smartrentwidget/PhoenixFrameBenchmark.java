@@ -0,0 +1,59 @@
+package com.hpp3.smartrentwidget;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link PhoenixFrame} codec on the socket's hot path, each benchmark next to its
+ * {@link LegacyFrameCodec} counterpart: the command frame sent for every tap, the reply decoded
+ * for every command and the state pushes that make up most of the traffic. Run with the gc
+ * profiler, as configured in build.gradle.kts, for allocations per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PhoenixFrameBenchmark {
+    static final String REPLY_FRAME =
+            "[\"1\",\"2\",\"devices:1234\",\"phx_reply\",{\"response\":{},\"status\":\"ok\"}]";
+    static final String PUSH_FRAME =
+            "[null,null,\"devices:1234\",\"attribute_state\",{\"device_id\":1234,\"name\":\"locked\",\"state\":\"true\"}]";
+
+    private final PhoenixFrame frame = new PhoenixFrame();
+    private int deviceId = 1234;
+
+    @Benchmark
+    public String encodeUpdateAttributes() {
+        return PhoenixFrame.updateAttribute("1", "2", deviceId++, "locked", "false");
+    }
+
+    @Benchmark
+    public String encodeUpdateAttributesLegacy() {
+        return LegacyFrameCodec.updateAttribute(deviceId++, "locked", "false");
+    }
+
+    @Benchmark
+    public boolean decodeReply() {
+        return frame.decode(REPLY_FRAME) && frame.isReply() && frame.isDevicesTopic() && frame.isOk();
+    }
+
+    @Benchmark
+    public boolean decodeReplyLegacy() {
+        return LegacyFrameCodec.isPhxReply(REPLY_FRAME) && "ok".equals(LegacyFrameCodec.getStatus(REPLY_FRAME));
+    }
+
+    @Benchmark
+    public boolean decodePush() {
+        return frame.decode(PUSH_FRAME) && frame.isReply();
+    }
+
+    @Benchmark
+    public boolean decodePushLegacy() {
+        return LegacyFrameCodec.isPhxReply(PUSH_FRAME);
+    }
+}
@@ -15,3 +15,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "SmartRentWidget"
 include(":app")
+include(":benchmark")
+include(":jmh")